@@ -0,0 +1,48 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Stops a running {@link UploadBatch}: files that did not start yet are not uploaded any more and the
+ * running uploads are aborted. The batch still logs out and reports the stopped files as failed, so
+ * its future completes when everything is cleaned up.
+ * <p>
+ * Cancelling is safe from any thread, including signal handlers like shutdown hooks.
+ *
+ * @author boris
+ */
+public final class Cancellation {
+  private final CompletableFuture<Void> cancelled = new CompletableFuture<>();
+
+  /** Cancel the batches that use this cancellation, calling it again does nothing */
+  public void cancel() {
+    cancelled.complete(null);
+  }
+
+  public boolean isCancelled() {
+    return cancelled.isDone();
+  }
+
+  /** Run the action once the cancellation happened, immediately if it already happened */
+  void onCancel(Runnable action) {
+    cancelled.thenRun(action);
+  }
+}
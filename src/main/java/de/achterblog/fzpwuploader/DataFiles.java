@@ -0,0 +1,40 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.nio.file.Path;
+
+/**
+ * The files in the user's home directory that are shared by all batches and all user interfaces.
+ *
+ * @author boris
+ */
+public final class DataFiles {
+  private static final Path DIRECTORY = Path.of(System.getProperty("user.home"), ".fzpwuploader");
+
+  /** Remembers the uploaded files, so a batch that was interrupted does not upload them again */
+  public static final Path JOURNAL_FILE = DIRECTORY.resolve("upload-journal.txt");
+  /** Remembers the content of all uploaded files, so the same image is not uploaded twice */
+  public static final Path CACHE_FILE = DIRECTORY.resolve("upload-cache.txt");
+  /** Keeps the login between the batches until the user logs out */
+  public static final Path SESSION_FILE = DIRECTORY.resolve("session.txt");
+
+  private DataFiles() {
+  }
+}
@@ -19,8 +19,6 @@
 package de.achterblog.fzpwuploader;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.io.UncheckedIOException;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
 import java.net.CookieStore;
@@ -31,6 +29,7 @@ import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
@@ -38,50 +37,133 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import de.achterblog.util.ApplicationProperties;
+import de.achterblog.util.JpegSegmentFilter;
 import de.achterblog.util.MultiPartBodyPublisher;
+import de.achterblog.util.TokenBucket;
 import de.achterblog.util.log.Level;
 import de.achterblog.util.log.Logger;
 import org.jspecify.annotations.Nullable;
 
 /**
  * Implementation of the upload for Freizeitparkweb.de
+ * <p>
+ * All requests are sent with {@link HttpClient#sendAsync}, the blocking methods of
+ * {@link UploadConnection} just wait for them. Login and logout must not be called concurrently,
+ * but once the connection is logged in uploads may be started from multiple threads at the same time.
+ * <p>
+ * With a {@link SessionStore} the cookies of a login are kept after {@link #disconnect()}, the next
+ * login of the same user first checks if the server still accepts them and only logs in with the
+ * password if it does not. Only an explicit {@link #logoutAsync()} ends the stored session.
+ * <p>
+ * A caller that completes the future of an upload itself (e.g. with a timeout or by cancelling it)
+ * aborts the running request of the upload and no further attempts are made.
  *
  * @author boris
  */
-//@NotThreadSafe
 public class FZPWUploadConnection implements UploadConnection {
   private static final Charset FZPW_CHARSET = StandardCharsets.ISO_8859_1;
+  /** Only the pages of a logged in user contain a link to log out */
+  private static final String LOGGED_IN_MARKER = "az=logout";
+  /** The timeout of the requests that do not set their own */
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+  /** The timeout of an upload, the time its body is held back by the byte rate is added to it */
+  private static final Duration UPLOAD_TIMEOUT = Duration.ofMinutes(1);
   public static final Pattern UPLOAD_FILE_NAME_PATTERN = Pattern.compile("https?://Freizeitparkweb.de/dcf/User_files/[\\da-f]+.jpg", Pattern.CASE_INSENSITIVE);
 
   private final String baseUrl;
-  private @Nullable HttpClient client;
-  private LoginStatus loginStatus = LoginStatus.DISCONNECTED;
+  private final RetryPolicy retryPolicy;
+  private final @Nullable SessionStore sessionStore;
+  private final Duration requestTimeout;
+  private final Duration uploadTimeout;
+  private final SingleOriginCookieStore cookieStore = new SingleOriginCookieStore();
+  private volatile @Nullable String user;
+  private volatile @Nullable RequestListener requestListener;
+  private volatile @Nullable RateLimiter rateLimiter;
+  private volatile @Nullable JpegSegmentFilter segmentFilter;
+  private volatile @Nullable HttpClient client;
+  private volatile LoginStatus loginStatus = LoginStatus.DISCONNECTED;
 
   public FZPWUploadConnection() {
-    this("https://freizeitparkweb.de/cgi-bin/dcf/dcboard.cgi");
+    this(RetryPolicy.DEFAULT);
+  }
+
+  public FZPWUploadConnection(RetryPolicy retryPolicy) {
+    this(retryPolicy, null);
+  }
+
+  public FZPWUploadConnection(RetryPolicy retryPolicy, @Nullable SessionStore sessionStore) {
+    this("https://freizeitparkweb.de/cgi-bin/dcf/dcboard.cgi", retryPolicy, sessionStore);
   }
 
   /** Package private constructor for the test-cases */
   FZPWUploadConnection(String baseUrl) {
+    this(baseUrl, RetryPolicy.DEFAULT);
+  }
+
+  /** Package private constructor for the test-cases */
+  FZPWUploadConnection(String baseUrl, RetryPolicy retryPolicy) {
+    this(baseUrl, retryPolicy, null);
+  }
+
+  /** Package private constructor for the test-cases */
+  FZPWUploadConnection(String baseUrl, RetryPolicy retryPolicy, @Nullable SessionStore sessionStore) {
+    this(baseUrl, retryPolicy, sessionStore, REQUEST_TIMEOUT, UPLOAD_TIMEOUT);
+  }
+
+  /** Package private constructor for the test-cases */
+  FZPWUploadConnection(String baseUrl, RetryPolicy retryPolicy, @Nullable SessionStore sessionStore,
+                       Duration requestTimeout, Duration uploadTimeout) {
     this.baseUrl = baseUrl;
+    this.retryPolicy = retryPolicy;
+    this.sessionStore = sessionStore;
+    this.requestTimeout = requestTimeout;
+    this.uploadTimeout = uploadTimeout;
   }
 
   @Override
-  public LoginStatus login(String user, String password) throws IOException, UploadException {
+  public CompletableFuture<LoginStatus> loginAsync(String user, String password) {
     if (loginStatus == LoginStatus.LOGGED_IN) {
       throw new IllegalStateException("Cannot login twice");
     }
 
+    cookieStore.removeAll();
     client = HttpClient.newBuilder()
-      .cookieHandler(new CookieManager(new SingleOriginCookieStore(), CookiePolicy.ACCEPT_ORIGINAL_SERVER))
+      .cookieHandler(new CookieManager(cookieStore, CookiePolicy.ACCEPT_ORIGINAL_SERVER))
       .build();
+    this.user = user;
+
+    final List<HttpCookie> storedCookies = loadStoredSession(user);
+    if (storedCookies.isEmpty()) {
+      return loginWithPassword(user, password);
+    }
+    storedCookies.forEach(it -> cookieStore.add(null, it));
+    return probeSessionAsync().thenCompose(valid -> {
+      if (valid) {
+        Logger.log(Level.DEBUG, () -> "Using the stored session of user " + user);
+        loginStatus = LoginStatus.LOGGED_IN;
+        return CompletableFuture.completedFuture(loginStatus);
+      }
+      Logger.log(Level.DEBUG, () -> "The stored session of user " + user + " is no longer valid");
+      cookieStore.removeAll();
+      return loginWithPassword(user, password);
+    });
+  }
+
+  private CompletableFuture<LoginStatus> loginWithPassword(String user, String password) {
     final Map<String, String> loginParameters = Map.of("cmd", "login",
                                                        "az", "login",
                                                        "Username", user,
@@ -89,64 +171,224 @@ public class FZPWUploadConnection implements UploadConnection {
     final HttpRequest.BodyPublisher loginRequest = makeFormEncodedRequest(loginParameters);
 
     final URI loginUri = makeUrl("?az=login");
-    final HttpResponse<String> response = sendRequest(HttpRequest.newBuilder(loginUri)
-                                                        .header("Content-Type", "application/x-www-form-urlencoded")
-                                                        .POST(loginRequest));
-    final String body = response.body();
-    loginStatus = LoginStatus.UNKNOWN;
-    if (body.contains("Seite wird geladen, einen Moment bitte...")) {
-      loginStatus = LoginStatus.LOGGED_IN;
-    }
-    if (body.contains("Login Problem: Falscher Username")) {
-      loginStatus = LoginStatus.REFUSED;
-    }
-    Logger.log(Level.DEBUG, () ->"LoginStatus for user " + user + ": " + loginStatus);
-    return loginStatus;
+    return sendRequestAsync(HttpRequest.newBuilder(loginUri)
+                              .header("Content-Type", "application/x-www-form-urlencoded")
+                              .POST(loginRequest))
+      .thenApply(response -> {
+        final String body = response.body();
+        loginStatus = LoginStatus.UNKNOWN;
+        if (body.contains("Seite wird geladen, einen Moment bitte...")) {
+          loginStatus = LoginStatus.LOGGED_IN;
+        }
+        if (body.contains("Login Problem: Falscher Username")) {
+          loginStatus = LoginStatus.REFUSED;
+        }
+        Logger.log(Level.DEBUG, () -> "LoginStatus for user " + user + ": " + loginStatus);
+        if (loginStatus == LoginStatus.LOGGED_IN) {
+          saveSession();
+        }
+        return loginStatus;
+      });
+  }
+
+  /** Check with a single request if the server still accepts the cookies, any error means it does not */
+  private CompletableFuture<Boolean> probeSessionAsync() {
+    return sendRequestAsync(HttpRequest.newBuilder(makeUrl("")))
+      .thenApply(response -> response.body().contains(LOGGED_IN_MARKER))
+      .exceptionally(e -> {
+        Logger.log(Level.INFO, () -> "Could not check the stored session: " + e);
+        return false;
+      });
   }
 
+  private List<HttpCookie> loadStoredSession(String user) {
+    if (sessionStore == null) {
+      return List.of();
+    }
+    try {
+      return sessionStore.load(user);
+    } catch (IOException e) {
+      Logger.log(Level.WARN, "Could not load the stored session", e);
+      return List.of();
+    }
+  }
+
+  private void saveSession() {
+    final String userRef = user;
+    if (sessionStore != null && userRef != null) {
+      try {
+        sessionStore.save(userRef, cookieStore.getCookies());
+      } catch (IOException e) {
+        Logger.log(Level.WARN, "Could not store the session", e);
+      }
+    }
+  }
+
+  private void clearSession() {
+    if (sessionStore != null) {
+      try {
+        sessionStore.clear();
+      } catch (IOException e) {
+        Logger.log(Level.WARN, "Could not delete the stored session", e);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Failed uploads are sent again as defined by the {@link RetryPolicy}, every attempt sends the same request body again
+   * (the file is read again, but the body is only prepared once).
+   */
   @Override
-  public String upload(final Path file) throws IOException, UploadException {
-    final URI url = makeUrl("?az=upload_file&forum=");
+  public CompletableFuture<String> uploadAsync(final Path file) {
+    return uploadAsync(file, _ -> {});
+  }
 
-    try (final var bodyPublisher = new MultiPartBodyPublisher(FZPW_CHARSET)) {
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The bytes are counted when the HTTP client takes them from the request body.
+   */
+  @Override
+  public CompletableFuture<String> uploadAsync(final Path file, final LongConsumer bytesSent) {
+    final JpegSegmentFilter filter = segmentFilter;
+    return uploadAsync(file, bytesSent, body -> {
+      if (filter != null) {
+        body.filterSegments(filter);
+      }
+      body.addPart("file_upload", file, null, "image/jpeg");
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The content is sent from memory, as with a file the bytes are counted when the HTTP client takes them.
+   */
+  @Override
+  public CompletableFuture<String> uploadAsync(final Path file, final ByteBuffer content, final LongConsumer bytesSent) {
+    final String filename = Objects.toString(file.getFileName());
+    return uploadAsync(file, bytesSent, body -> body.addPart("file_upload", content, filename, "image/jpeg"));
+  }
+
+  private CompletableFuture<String> uploadAsync(final Path file, final LongConsumer bytesSent,
+                                                final Consumer<MultiPartBodyPublisher> filePart) {
+    final HttpRequest.BodyPublisher body;
+    final String boundary;
+    final var timing = new BodyTiming(bytesSent);
+    try {
+      final var bodyPublisher = new MultiPartBodyPublisher(FZPW_CHARSET);
       bodyPublisher.addPart("az", "upload_file")
-                   .addPart("command", "save")
-                   .addPart("file_upload", file, null, "image/jpeg")
-                   .addPart("file_type", "jpg");
-      final HttpResponse<String> response = sendRequest(HttpRequest.newBuilder(url)
-                                                          .header("Referer", url.toString())
-                                                          .header("Content-Type", "multipart/form-data; boundary=" + bodyPublisher.getBoundary())
-                                                          .timeout(Duration.ofMinutes(1))
-                                                          .POST(bodyPublisher.build()));
-
-      final Matcher matcher = UPLOAD_FILE_NAME_PATTERN.matcher(response.body());
-      if (!matcher.find()) {
-        Logger.log(Level.INFO, () -> "The server's response was " + response.statusCode() + ":\n" + response.body());
-        throw new UploadException("Could not find URL in the response");
+                   .addPart("command", "save");
+      filePart.accept(bodyPublisher);
+      bodyPublisher.addPart("file_type", "jpg")
+                   .onProgress(timing);
+      final RateLimiter limiter = rateLimiter;
+      final TokenBucket bytesPerSecond = limiter != null ? limiter.bytes() : null;
+      if (bytesPerSecond != null) {
+        bodyPublisher.limitRate(bytesPerSecond);
+      }
+      body = bodyPublisher.build();
+      boundary = bodyPublisher.getBoundary();
+      timing.length = body.contentLength();
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    final var upload = new CompletableFuture<String>();
+    uploadAsync(file, body, boundary, timing, 1, upload).whenComplete((url, e) -> {
+      if (e == null) {
+        upload.complete(url);
+      } else {
+        upload.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+      }
+    });
+    return upload;
+  }
+
+  private CompletableFuture<String> uploadAsync(final Path file, final HttpRequest.BodyPublisher body, final String boundary,
+                                                final BodyTiming timing, final int attempt, final CompletableFuture<?> caller) {
+    return uploadOnceAsync(file, body, boundary, timing, caller).exceptionallyCompose(e -> {
+      final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+      if (caller.isDone() || !retryPolicy.shouldRetry(attempt, cause)) {
+        return CompletableFuture.failedFuture(cause);
       }
-      final String uploadedUrl = matcher.group(0);
-      Logger.log(Level.INFO, () -> "Successfully uploaded file " + file.getFileName() + " to " + uploadedUrl);
-      return uploadedUrl;
+      final Duration delay = retryPolicy.delayAfter(attempt);
+      Logger.log(Level.INFO, () -> "Attempt " + attempt + " to upload " + file.getFileName() + " failed (" + cause
+        + "), trying again in " + delay.toMillis() + "ms");
+      final Executor delayed = CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS);
+      return CompletableFuture.supplyAsync(() -> file, delayed).thenCompose(_ -> uploadAsync(file, body, boundary, timing, attempt + 1, caller));
+    });
+  }
+
+  /**
+   * Send the upload once. The time the body needs at the byte rate of the {@link RateLimiter} is added to the
+   * timeout, the timeout of the HTTP client also covers sending the body. The {@link RequestListener} gets the
+   * time the server needed after the body, see {@link BodyTiming}.
+   */
+  private CompletableFuture<String> uploadOnceAsync(final Path file, final HttpRequest.BodyPublisher body, final String boundary,
+                                                    final BodyTiming timing, final CompletableFuture<?> caller) {
+    final URI url = makeUrl("?az=upload_file&forum=");
+    final RequestListener listener = requestListener;
+    timing.sentAt = 0;
+    final RateLimiter limiter = rateLimiter;
+    final long length = body.contentLength();
+    final Duration sendTime = limiter != null ? limiter.startBody(length) : Duration.ZERO;
+    CompletableFuture<String> upload;
+    try {
+      upload = sendRequestAsync(HttpRequest.newBuilder(url)
+                                  .header("Referer", url.toString())
+                                  .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                                  .timeout(uploadTimeout.plus(sendTime))
+                                  .POST(body), caller, listener != null ? timing.serverLatency(listener) : null)
+        .thenApply(response -> {
+          final Matcher matcher = UPLOAD_FILE_NAME_PATTERN.matcher(response.body());
+          if (!matcher.find()) {
+            Logger.log(Level.INFO, () -> "The server's response was " + response.statusCode() + ":\n" + response.body());
+            throw new CompletionException(new UploadException("Could not find URL in the response"));
+          }
+          final String uploadedUrl = matcher.group(0);
+          Logger.log(Level.INFO, () -> "Successfully uploaded file " + file.getFileName() + " to " + uploadedUrl);
+          return uploadedUrl;
+        });
+    } catch (RuntimeException e) {
+      upload = CompletableFuture.failedFuture(e);
     }
+    return limiter != null ? upload.whenComplete((_, _) -> limiter.endBody(length)) : upload;
   }
 
   @Override
-  public boolean logout() {
+  public CompletableFuture<Boolean> logoutAsync() {
+    CompletableFuture<Boolean> logout;
     try {
       URI get = makeUrl("?az=logout");
-      final HttpResponse<String> response = sendRequest(HttpRequest.newBuilder(get));
-      return response.body().contains("Der User wurde auf diesem Rechner ausgeloggt...");
-    } catch (UploadException | IOException e) {
-      Logger.log(Level.WARN, "Exception while logging out", e);
-      return false;
-    } finally {
-      client = null;
-      loginStatus = LoginStatus.LOGGED_OUT;
+      logout = sendRequestAsync(HttpRequest.newBuilder(get))
+        .thenApply(response -> response.body().contains("Der User wurde auf diesem Rechner ausgeloggt..."));
+    } catch (RuntimeException e) {
+      logout = CompletableFuture.failedFuture(e);
     }
+    return logout
+      .exceptionally(e -> {
+        Logger.log(Level.WARN, "Exception while logging out", e);
+        return false;
+      })
+      .whenComplete((_, _) -> {
+        clearSession();
+        client = null;
+        loginStatus = LoginStatus.LOGGED_OUT;
+      });
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * With a {@link SessionStore} the current cookies of a logged in session are stored for the next login.
+   */
   @Override
   public void disconnect() {
+    if (loginStatus == LoginStatus.LOGGED_IN) {
+      saveSession();
+    }
     loginStatus = LoginStatus.DISCONNECTED;
   }
 
@@ -155,25 +397,79 @@ public class FZPWUploadConnection implements UploadConnection {
     return loginStatus;
   }
 
-  private HttpResponse<String> sendRequest(HttpRequest.Builder requestBuilder) throws IOException, UploadException {
-    try {
-      final HttpRequest request = requestBuilder
-        .header("User-Agent", "fzpwuploader/" + ApplicationProperties.INSTANCE.getVersion())
-        .timeout(Duration.ofSeconds(30))
-        .build();
-      final HttpClient clientRef = Objects.requireNonNull(client, "Client is not connected, should not be possible");
-      final HttpResponse<String> response = clientRef.send(request, HttpResponse.BodyHandlers.ofString(FZPW_CHARSET));
-      final int status = response.statusCode();
-      Logger.log(Level.DEBUG, () -> "URL " + request.uri() + " returned " + status);
-      if (status != HttpURLConnection.HTTP_OK) {
-        throw new UploadException("Unexpected http-return code: " + status);
-      }
-      return response;
-    } catch (UncheckedIOException e) {
-      throw e.getCause();
-    } catch (InterruptedException e) {
-      throw new InterruptedIOException(e.getMessage());
+  /** Set the limits for the requests and uploaded bytes per second, {@code null} for no limits */
+  public void setRateLimiter(@Nullable RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  /** Set the filter for the segments that are removed from the uploaded files (not from other content), {@code null} to send them unchanged */
+  public void setSegmentFilter(@Nullable JpegSegmentFilter segmentFilter) {
+    this.segmentFilter = segmentFilter;
+  }
+
+  /** Set the listener that gets the latency and result of every upload request, {@code null} to remove it */
+  public void setRequestListener(@Nullable RequestListener requestListener) {
+    this.requestListener = requestListener;
+  }
+
+  private CompletableFuture<HttpResponse<String>> sendRequestAsync(HttpRequest.Builder requestBuilder) {
+    return sendRequestAsync(requestBuilder, null, null);
+  }
+
+  /**
+   * Send the request, it is aborted if the {@code caller} completes exceptionally before the response is there.
+   * The {@code listener} gets the latency and result of the request. A request without an own timeout gets
+   * the default timeout.
+   */
+  private CompletableFuture<HttpResponse<String>> sendRequestAsync(HttpRequest.Builder requestBuilder,
+                                                                   @Nullable CompletableFuture<?> caller,
+                                                                   @Nullable RequestListener listener) {
+    final HttpRequest built = requestBuilder
+      .header("User-Agent", "fzpwuploader/" + ApplicationProperties.INSTANCE.getVersion())
+      .build();
+    final HttpRequest request = built.timeout().isPresent() ? built : requestBuilder.timeout(requestTimeout).build();
+    final HttpClient clientRef = Objects.requireNonNull(client, "Client is not connected, should not be possible");
+    final RateLimiter limiter = rateLimiter;
+    final long delay = limiter != null ? limiter.reserveRequest() : 0;
+    if (delay > 0) {
+      Logger.log(Level.DEBUG, () -> "Delaying the request to " + request.uri() + " by " + TimeUnit.NANOSECONDS.toMillis(delay) + "ms");
+      final Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS);
+      return CompletableFuture.supplyAsync(() -> request, delayed).thenCompose(_ -> sendRequestAsync(clientRef, request, caller, listener));
+    }
+    return sendRequestAsync(clientRef, request, caller, listener);
+  }
+
+  private CompletableFuture<HttpResponse<String>> sendRequestAsync(HttpClient clientRef, HttpRequest request,
+                                                                   @Nullable CompletableFuture<?> caller,
+                                                                   @Nullable RequestListener listener) {
+    if (caller != null && caller.isDone()) {
+      return CompletableFuture.failedFuture(new CancellationException("The request to " + request.uri() + " was aborted"));
     }
+    final long start = System.nanoTime();
+    final CompletableFuture<HttpResponse<String>> exchange = clientRef.sendAsync(request, HttpResponse.BodyHandlers.ofString(FZPW_CHARSET));
+    if (caller != null) {
+      // cancelling the future of sendAsync with mayInterruptIfRunning aborts the exchange
+      caller.whenComplete((_, e) -> {
+        if (e != null) {
+          exchange.cancel(true);
+        }
+      });
+    }
+    return exchange
+      .thenApply(response -> {
+        final int status = response.statusCode();
+        Logger.log(Level.DEBUG, () -> "URL " + request.uri() + " returned " + status);
+        if (status != HttpURLConnection.HTTP_OK) {
+          throw new CompletionException(new HttpStatusException(status));
+        }
+        return response;
+      })
+      .whenComplete((_, e) -> {
+        if (listener != null) {
+          final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+          listener.requestCompleted(Duration.ofNanos(System.nanoTime() - start), cause);
+        }
+      });
   }
 
   private URI makeUrl(String s) {
@@ -187,12 +483,43 @@ public class FZPWUploadConnection implements UploadConnection {
     return HttpRequest.BodyPublishers.ofString(bodyString);
   }
 
+  /**
+   * Remembers when the last byte of an upload body was handed to the HTTP client. The time until the response
+   * after that is the latency of the server for the upload: unlike the time of the whole request it does not
+   * grow with the size of the file or with the byte rate, so uploads of different files can be compared.
+   */
+  private static final class BodyTiming implements LongConsumer {
+    private final LongConsumer bytesSent;
+    private volatile long length = -1;
+    /** The {@link System#nanoTime()} when the body was sent, 0 while it is not (or not yet) sent */
+    private volatile long sentAt = 0;
+
+    BodyTiming(LongConsumer bytesSent) {
+      this.bytesSent = bytesSent;
+    }
+
+    @Override
+    public void accept(long count) {
+      bytesSent.accept(count);
+      if (count == length) {
+        sentAt = System.nanoTime();
+      }
+    }
+
+    /** Pass the latency after the body to the {@code listener}, or the whole latency if the body was not sent completely */
+    RequestListener serverLatency(RequestListener listener) {
+      return (latency, failure) -> {
+        final long sent = sentAt;
+        listener.requestCompleted(sent != 0 ? Duration.ofNanos(System.nanoTime() - sent) : latency, failure);
+      };
+    }
+  }
 
   private static final class SingleOriginCookieStore implements CookieStore {
     private final ConcurrentMap<String, HttpCookie> cookies = new ConcurrentHashMap<>();
 
     @Override
-    public void add(URI uri, HttpCookie cookie) {
+    public void add(@Nullable URI uri, HttpCookie cookie) {
       cookies.put(cookie.getName(), cookie);
     }
 
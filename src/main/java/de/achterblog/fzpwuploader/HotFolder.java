@@ -0,0 +1,408 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import de.achterblog.fzpwuploader.UploadBatch.UploadBatchCallback;
+import de.achterblog.util.log.Level;
+import de.achterblog.util.log.Logger;
+
+/**
+ * Watches folders and uploads every JPEG image that is put into them.
+ * <p>
+ * A new file is only uploaded once its size and modification time did not change for the quiet
+ * period, so files that are still being written are not uploaded half-way. All files that are ready
+ * while no batch is running are uploaded together in the next {@link UploadBatch} run, which uses a
+ * login that is kept between the runs (it is renewed after it was idle for some time or seems to
+ * have expired).
+ * <p>
+ * The result of every image is written next to it: {@code image.jpg.url} contains the URL,
+ * {@code image.jpg.failed} the reason of the failure. Images with one of these files are not uploaded
+ * again, also not after a restart, so to retry an image its {@code .failed} file must be deleted.
+ * Images of a batch that was cancelled get no {@code .failed} file and are uploaded after the restart.
+ * <p>
+ * {@link #close()} or the {@link Cancellation} of the batch stop watching and cancel the running batch.
+ *
+ * @author boris
+ */
+public final class HotFolder implements Closeable {
+  /** The suffix of the file with the URL of an uploaded image */
+  public static final String URL_SUFFIX = ".url";
+  /** The suffix of the file with the reason why an image could not be uploaded */
+  public static final String FAILED_SUFFIX = ".failed";
+  private static final Duration DEFAULT_QUIET_PERIOD = Duration.ofSeconds(2);
+  /** A login that was not used for this time is renewed before the next batch */
+  private static final Duration MAX_IDLE_LOGIN = Duration.ofMinutes(10);
+  /** The time to wait before files are tried again after their whole batch failed, e.g. because the login did not work */
+  private static final Duration BATCH_RETRY_DELAY = Duration.ofMinutes(1);
+
+  private final UploadBatch batch;
+  private final List<Path> folders;
+  private final Duration quietPeriod;
+  private final WatchService watchService;
+  private final WarmConnection connection;
+  private final Cancellation cancellation;
+
+  /** The files that may still be written, only used by the thread in {@link #run()} */
+  private final Map<Path, PendingFile> pending = new HashMap<>();
+  /** The files that are ready for the next batch, only used by the thread in {@link #run()} */
+  private final Set<Path> ready = new LinkedHashSet<>();
+  private final Set<Path> uploading = ConcurrentHashMap.newKeySet();
+  /** Files of failed batches that are given back to the thread in {@link #run()} */
+  private final Queue<Path> returned = new ConcurrentLinkedQueue<>();
+  private CompletableFuture<?> running = CompletableFuture.completedFuture(null);
+
+  private HotFolder(UploadBatch batch, List<Path> folders, Duration quietPeriod, Supplier<UploadConnection> connections) throws IOException {
+    this.cancellation = Objects.requireNonNullElseGet(batch.cancellation(), Cancellation::new);
+    this.batch = batch.withCallback(new SidecarWriter(batch.callback())).withCancellation(cancellation);
+    this.folders = List.copyOf(folders);
+    this.quietPeriod = quietPeriod;
+    this.connection = new WarmConnection(connections, batch.keepsLogin());
+    this.watchService = folders.getFirst().getFileSystem().newWatchService();
+    try {
+      for (Path folder : folders) {
+        folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+      }
+    } catch (IOException | RuntimeException e) {
+      watchService.close();
+      throw e;
+    }
+    cancellation.onCancel(this::stopWatching);
+  }
+
+  /**
+   * Start to watch the folders, the images are uploaded with the settings of the batch once {@link #run()} is called
+   *
+   * @param batch The settings of the upload, its callback gets the result of every image
+   */
+  public static HotFolder watch(UploadBatch batch, List<Path> folders) throws IOException {
+    return watch(batch, folders, DEFAULT_QUIET_PERIOD, batch::newConnection);
+  }
+
+  /** Package private for the test-cases */
+  static HotFolder watch(UploadBatch batch, List<Path> folders, Duration quietPeriod, Supplier<UploadConnection> connections) throws IOException {
+    if (folders.isEmpty()) {
+      throw new IllegalArgumentException("No folder to watch");
+    }
+    return new HotFolder(batch, folders, quietPeriod, connections);
+  }
+
+  /**
+   * Upload the images that are already in the folders and then every new image until {@link #close()} is called.
+   * Before it returns, the running batch is finished and the login is ended.
+   */
+  public void run() {
+    try {
+      folders.forEach(this::scan);
+      while (true) {
+        final WatchKey key = watchService.poll(quietPeriod.toMillis() / 2 + 1, TimeUnit.MILLISECONDS);
+        if (key != null) {
+          handleEvents(key);
+        }
+        Path file;
+        while ((file = returned.poll()) != null) {
+          pending.put(file, PendingFile.UNKNOWN.retryAt(System.nanoTime() + BATCH_RETRY_DELAY.toNanos()));
+        }
+        checkPending(System.nanoTime());
+        startBatchIfIdle();
+      }
+    } catch (ClosedWatchServiceException e) {
+      Logger.log(Level.INFO, "Stopped watching " + folders);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      Logger.log(Level.INFO, "Interrupted while watching " + folders);
+    } finally {
+      running.handle((_, _) -> null).join();
+      connection.shutdown().join();
+    }
+  }
+
+  /** Stop watching and cancel the running batch, {@link #run()} returns once its aborted uploads are done */
+  @Override
+  public void close() {
+    cancellation.cancel();
+  }
+
+  private void stopWatching() {
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      Logger.log(Level.WARN, "Could not stop watching " + folders, e);
+    }
+  }
+
+  private void handleEvents(WatchKey key) {
+    final var folder = (Path) key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        scan(folder);
+      } else if (event.context() instanceof Path file) {
+        offer(folder.resolve(file));
+      }
+    }
+    if (!key.reset()) {
+      Logger.log(Level.WARN, "Cannot watch " + folder + " anymore");
+    }
+  }
+
+  private void scan(Path folder) {
+    try (Stream<Path> files = Files.list(folder)) {
+      files.forEach(this::offer);
+    } catch (IOException e) {
+      Logger.log(Level.WARN, "Could not list the files in " + folder, e);
+    }
+  }
+
+  private void offer(Path file) {
+    if (isImage(file) && !pending.containsKey(file) && !ready.contains(file) && !uploading.contains(file) && !isDone(file)) {
+      pending.put(file, PendingFile.UNKNOWN.retryAt(System.nanoTime()));
+    }
+  }
+
+  /** Move the files that did not change for the quiet period to the ready files */
+  private void checkPending(long now) {
+    for (Iterator<Map.Entry<Path, PendingFile>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+      final Map.Entry<Path, PendingFile> entry = it.next();
+      final PendingFile current;
+      try {
+        final var attributes = Files.readAttributes(entry.getKey(), BasicFileAttributes.class);
+        current = new PendingFile(attributes.size(), attributes.lastModifiedTime().toMillis(), now);
+      } catch (NoSuchFileException e) {
+        it.remove();
+        continue;
+      } catch (IOException e) {
+        Logger.log(Level.WARN, "Could not check " + entry.getKey(), e);
+        continue;
+      }
+      final PendingFile previous = entry.getValue();
+      if (!previous.isSameFile(current)) {
+        entry.setValue(previous.lastChange() > now ? current.retryAt(previous.lastChange()) : current);
+      } else if (now - previous.lastChange() >= quietPeriod.toNanos()) {
+        it.remove();
+        ready.add(entry.getKey());
+      }
+    }
+  }
+
+  private void startBatchIfIdle() {
+    if (ready.isEmpty() || !running.isDone()) {
+      return;
+    }
+    final List<Path> files = List.copyOf(ready);
+    ready.clear();
+    uploading.addAll(files);
+    Logger.log(Level.INFO, () -> "Uploading " + files.size() + " new files");
+    running = batch.uploadResultsAsync(files, () -> connection).whenComplete((_, e) -> {
+      if (e != null) {
+        Logger.log(Level.ERROR, "Could not upload " + files.size() + " files, trying again later", e);
+        files.forEach(it -> {
+          uploading.remove(it);
+          returned.add(it);
+        });
+      }
+    });
+  }
+
+  private static boolean isImage(Path file) {
+    final String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+    return name.endsWith(".jpg") || name.endsWith(".jpeg");
+  }
+
+  private static boolean isDone(Path file) {
+    return Files.exists(sidecar(file, URL_SUFFIX)) || Files.exists(sidecar(file, FAILED_SUFFIX));
+  }
+
+  private static Path sidecar(Path file, String suffix) {
+    return file.resolveSibling(file.getFileName() + suffix);
+  }
+
+  /** The state of a file the last time it was checked, {@code lastChange} is a {@link System#nanoTime()} */
+  private record PendingFile(long size, long lastModified, long lastChange) {
+    static final PendingFile UNKNOWN = new PendingFile(-1, -1, 0);
+
+    PendingFile retryAt(long time) {
+      return new PendingFile(size, lastModified, time);
+    }
+
+    boolean isSameFile(PendingFile other) {
+      return size == other.size && lastModified == other.lastModified;
+    }
+  }
+
+  /** Writes the result of every image next to it before it is passed to the callback of the batch */
+  private final class SidecarWriter implements UploadBatchCallback {
+    private final UploadBatchCallback callback;
+
+    SidecarWriter(UploadBatchCallback callback) {
+      this.callback = callback;
+    }
+
+    @Override
+    public void uploaded(Path uploaded, String url) {
+      write(uploaded, URL_SUFFIX, url);
+      callback.uploaded(uploaded, url);
+    }
+
+    @Override
+    public void failed(Path uploaded, Throwable cause) {
+      if (cause instanceof CancellationException) {
+        // not a problem of the image, it is uploaded again after a restart
+        uploading.remove(uploaded);
+      } else {
+        write(uploaded, FAILED_SUFFIX, UploadResult.failure(uploaded, cause).toText().strip());
+      }
+      callback.failed(uploaded, cause);
+    }
+
+    private void write(Path image, String suffix, String content) {
+      final Path sidecar = sidecar(image, suffix);
+      final Path tempFile = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+      try {
+        Files.writeString(tempFile, content + "\n", StandardCharsets.UTF_8);
+        Files.move(tempFile, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        Logger.log(Level.ERROR, "Could not write " + sidecar, e);
+      } finally {
+        uploading.remove(image);
+      }
+    }
+  }
+
+  /**
+   * Keeps one login for all batches: the batches "log in" and "log out" of this connection, but only
+   * the first login and {@link #shutdown()} are sent to the server.
+   */
+  private static final class WarmConnection implements UploadConnection {
+    private final Supplier<UploadConnection> connections;
+    private final boolean keepLogin;
+    private volatile UploadConnection current;
+    private volatile long lastUsed = System.nanoTime();
+    private volatile boolean expired = false;
+
+    WarmConnection(Supplier<UploadConnection> connections, boolean keepLogin) {
+      this.connections = connections;
+      this.keepLogin = keepLogin;
+      this.current = connections.get();
+    }
+
+    @Override
+    public synchronized CompletableFuture<LoginStatus> loginAsync(String user, String password) {
+      final UploadConnection previous = current;
+      if (previous.getLoginStatus() == LoginStatus.LOGGED_IN) {
+        if (!expired && System.nanoTime() - lastUsed < MAX_IDLE_LOGIN.toNanos()) {
+          return CompletableFuture.completedFuture(LoginStatus.LOGGED_IN);
+        }
+        Logger.log(Level.INFO, "Renewing the login");
+        end(previous);
+      }
+      current = connections.get();
+      expired = false;
+      lastUsed = System.nanoTime();
+      return current.loginAsync(user, password);
+    }
+
+    @Override
+    public CompletableFuture<String> uploadAsync(Path file) {
+      return uploadAsync(file, _ -> {});
+    }
+
+    @Override
+    public CompletableFuture<String> uploadAsync(Path file, LongConsumer bytesSent) {
+      lastUsed = System.nanoTime();
+      return track(current.uploadAsync(file, bytesSent));
+    }
+
+    @Override
+    public CompletableFuture<String> uploadAsync(Path file, ByteBuffer content, LongConsumer bytesSent) {
+      lastUsed = System.nanoTime();
+      return track(current.uploadAsync(file, content, bytesSent));
+    }
+
+    /** Notes the end of the upload, the future of the connection is returned itself, so a caller that fails it aborts the upload */
+    private CompletableFuture<String> track(CompletableFuture<String> upload) {
+      upload.whenComplete((_, e) -> {
+        lastUsed = System.nanoTime();
+        if (SessionPool.indicatesExpiredLogin(e)) {
+          expired = true;
+        }
+      });
+      return upload;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> logoutAsync() {
+      // the login is kept for the next batch
+      return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public void disconnect() {
+      // the login is kept for the next batch
+    }
+
+    @Override
+    public LoginStatus getLoginStatus() {
+      return current.getLoginStatus();
+    }
+
+    synchronized CompletableFuture<?> shutdown() {
+      return current.getLoginStatus() == LoginStatus.LOGGED_IN ? end(current) : CompletableFuture.completedFuture(null);
+    }
+
+    private CompletableFuture<?> end(UploadConnection con) {
+      if (keepLogin) {
+        con.disconnect();
+        return CompletableFuture.completedFuture(null);
+      }
+      return con.logoutAsync().whenComplete((_, _) -> con.disconnect());
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.io.Serial;
+
+/**
+ * Thrown if the server answered with an unexpected http status code
+ *
+ * @author boris
+ */
+public class HttpStatusException extends UploadException {
+  @Serial
+  private static final long serialVersionUID = 4127830951364203553L;
+
+  private final int statusCode;
+
+  HttpStatusException(int statusCode) {
+    super("Unexpected http-return code: " + statusCode);
+    this.statusCode = statusCode;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import de.achterblog.util.JpegSegmentFilter;
+import org.jspecify.annotations.Nullable;
+import org.w3c.dom.Node;
+
+/**
+ * Downscales images before they are uploaded, so they are not larger than {@code maxEdge} pixels in both
+ * directions, and stores them as JPEG with the given {@code quality} (between 0 and 1).
+ * <p>
+ * Only every n-th pixel of a large image is decoded (as long as at least twice the target size is left),
+ * which saves most of the time and memory of decoding it. The rest is scaled down in steps of at most
+ * half the size, which keeps the result smooth. The result is kept in memory, nothing is written to disk.
+ * The metadata of the file is not copied, but the orientation of the camera is applied to the pixels.
+ *
+ * @author boris
+ */
+public record ImageResizer(int maxEdge, float quality) {
+  /** About the size the forum shows the images in */
+  public static final int DEFAULT_MAX_EDGE = 1600;
+  public static final float DEFAULT_QUALITY = 0.85f;
+  /** The marker of the APP1 segment that has the EXIF data */
+  private static final int EXIF_MARKER = 0xE1;
+
+  public ImageResizer {
+    if (maxEdge < 1) {
+      throw new IllegalArgumentException("maxEdge must be positive");
+    }
+    if (!(quality > 0 && quality <= 1)) {
+      throw new IllegalArgumentException("quality must be greater than 0 and at most 1");
+    }
+  }
+
+  public ImageResizer() {
+    this(DEFAULT_MAX_EDGE, DEFAULT_QUALITY);
+  }
+
+  /** The settings as they are stored with an upload in the {@link UploadJournal} and the {@link UploadCache} */
+  String settings() {
+    return "resize=" + maxEdge + "@" + quality;
+  }
+
+  /** A pool with one thread per core for {@link #resize(Path)}, decoding and encoding images only needs the CPU */
+  ExecutorService createExecutor() {
+    return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                                        Thread.ofPlatform().name("resize-", 0).daemon().factory());
+  }
+
+  /**
+   * Downscale the image in the file
+   *
+   * @return The downscaled JPEG, or empty if the file should be uploaded as it is: the image is not larger
+   *         than {@code maxEdge}, it is no image or the JPEG would not be smaller than the file
+   * @throws IOException If the file cannot be read or decoded
+   */
+  public Optional<ByteBuffer> resize(Path file) throws IOException {
+    final BufferedImage image;
+    try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+      if (in == null) {
+        throw new IOException("Cannot read " + file);
+      }
+      final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        return Optional.empty();
+      }
+      final ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, false);
+        final int edge = Math.max(reader.getWidth(0), reader.getHeight(0));
+        if (edge <= maxEdge) {
+          return Optional.empty();
+        }
+        final ImageReadParam param = reader.getDefaultReadParam();
+        final int subsampling = Math.max(1, edge / (2 * maxEdge));
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        final int orientation = orientation(reader.getImageMetadata(0));
+        image = scale(orient(reader.read(0, param), orientation));
+      } finally {
+        reader.dispose();
+      }
+    }
+    final ByteBuffer jpeg = writeJpeg(image);
+    return jpeg.remaining() < Files.size(file) ? Optional.of(jpeg) : Optional.empty();
+  }
+
+  /** Halve the size until the next step reaches {@code maxEdge} */
+  private BufferedImage scale(BufferedImage image) {
+    BufferedImage current = image;
+    int edge = Math.max(current.getWidth(), current.getHeight());
+    while (edge > maxEdge) {
+      final int nextEdge = Math.max(maxEdge, (edge + 1) / 2);
+      final double factor = (double) nextEdge / edge;
+      final int width = Math.max(1, (int) Math.round(current.getWidth() * factor));
+      final int height = Math.max(1, (int) Math.round(current.getHeight() * factor));
+      current = draw(current, width, height, AffineTransform.getScaleInstance((double) width / current.getWidth(),
+                                                                              (double) height / current.getHeight()));
+      edge = nextEdge;
+    }
+    return current;
+  }
+
+  /** Turn the image as the camera was held, see the EXIF orientation */
+  private static BufferedImage orient(BufferedImage image, int orientation) {
+    final int w = image.getWidth();
+    final int h = image.getHeight();
+    return switch (orientation) {
+      case 2 -> draw(image, w, h, new AffineTransform(-1, 0, 0, 1, w, 0));
+      case 3 -> draw(image, w, h, new AffineTransform(-1, 0, 0, -1, w, h));
+      case 4 -> draw(image, w, h, new AffineTransform(1, 0, 0, -1, 0, h));
+      case 5 -> draw(image, h, w, new AffineTransform(0, 1, 1, 0, 0, 0));
+      case 6 -> draw(image, h, w, new AffineTransform(0, 1, -1, 0, h, 0));
+      case 7 -> draw(image, h, w, new AffineTransform(0, -1, -1, 0, h, w));
+      case 8 -> draw(image, h, w, new AffineTransform(0, -1, 1, 0, 0, w));
+      default -> image;
+    };
+  }
+
+  /** Draw the image into a new RGB image, a transparent background becomes white */
+  private static BufferedImage draw(BufferedImage image, int width, int height, AffineTransform transform) {
+    final var result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    final Graphics2D g = result.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      g.setColor(Color.WHITE);
+      g.fillRect(0, 0, width, height);
+      g.drawImage(image, transform, null);
+    } finally {
+      g.dispose();
+    }
+    return result;
+  }
+
+  private ByteBuffer writeJpeg(BufferedImage image) throws IOException {
+    final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    final var out = new Output();
+    try (var stream = new MemoryCacheImageOutputStream(out)) {
+      writer.setOutput(stream);
+      final ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(quality);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return out.toByteBuffer();
+  }
+
+  /** The EXIF orientation of a JPEG (1 to 8), 1 (as it is) if there is none */
+  private static int orientation(@Nullable IIOMetadata metadata) {
+    if (metadata == null || !"javax_imageio_jpeg_image_1.0".equals(metadata.getNativeMetadataFormatName())) {
+      return 1;
+    }
+    final Node root = metadata.getAsTree("javax_imageio_jpeg_image_1.0");
+    for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (!"markerSequence".equals(node.getNodeName())) {
+        continue;
+      }
+      for (Node marker = node.getFirstChild(); marker != null; marker = marker.getNextSibling()) {
+        if ("unknown".equals(marker.getNodeName()) && marker instanceof IIOMetadataNode unknown
+            && String.valueOf(EXIF_MARKER).equals(unknown.getAttribute("MarkerTag"))
+            && unknown.getUserObject() instanceof byte[] exif) {
+          return JpegSegmentFilter.exifOrientation(exif);
+        }
+      }
+    }
+    return 1;
+  }
+
+  /** Gives the written bytes without copying them */
+  private static final class Output extends ByteArrayOutputStream {
+    Output() {
+      super(64 * 1024);
+    }
+
+    ByteBuffer toByteBuffer() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+  }
+}
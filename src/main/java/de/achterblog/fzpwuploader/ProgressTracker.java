@@ -0,0 +1,132 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+import de.achterblog.fzpwuploader.UploadBatch.UploadBatchCallback;
+import de.achterblog.fzpwuploader.UploadProgress.FileProgress;
+
+/**
+ * Collects the sent bytes of all uploads of a batch and passes them to the callback as
+ * {@link UploadProgress}, but not more often than every {@link #REPORT_INTERVAL} (except for the
+ * final report), so a fast connection does not flood the callback.
+ *
+ * @author boris
+ */
+final class ProgressTracker {
+  static final Duration REPORT_INTERVAL = Duration.ofMillis(250);
+
+  private final UploadBatchCallback callback;
+  private final LongSupplier nanoTime;
+  private final Map<Path, Long> sizes = new HashMap<>();
+  private final long totalBytes;
+  /** The sent bytes of the current attempt of the running uploads */
+  private final Map<Path, Long> running = new ConcurrentHashMap<>();
+  private final AtomicLong doneBytes = new AtomicLong();
+  private final AtomicLong transferredBytes = new AtomicLong();
+  private final AtomicLong firstByteTime = new AtomicLong(Long.MIN_VALUE);
+  private final AtomicLong nextReport;
+
+  ProgressTracker(UploadBatchCallback callback, List<Path> files) {
+    this(callback, files, System::nanoTime);
+  }
+
+  /** Package private constructor for the test-cases */
+  ProgressTracker(UploadBatchCallback callback, List<Path> files, LongSupplier nanoTime) {
+    this.callback = callback;
+    this.nanoTime = nanoTime;
+    long total = 0;
+    for (Path file : files) {
+      final long size = sizes.computeIfAbsent(file, UploadBatch::sizeOf);
+      total += size;
+    }
+    this.totalBytes = total;
+    this.nextReport = new AtomicLong(nanoTime.getAsLong());
+  }
+
+  /** The listener for the sent bytes of the file, see {@link UploadConnection#uploadAsync(Path, LongConsumer)} */
+  LongConsumer listenerFor(Path file) {
+    return sentBytes -> sent(file, sentBytes);
+  }
+
+  /**
+   * The listener for the sent bytes of other content that is uploaded for the file, e.g. a downscaled image.
+   * The bytes are scaled to the size of the file, so the progress (and the throughput, which gives the
+   * remaining time) stays in bytes of the files of the batch.
+   */
+  LongConsumer listenerFor(Path file, long contentSize) {
+    final long size = sizes.getOrDefault(file, 0L);
+    if (contentSize <= 0 || contentSize == size) {
+      return listenerFor(file);
+    }
+    final double factor = (double) size / contentSize;
+    return sentBytes -> sent(file, (long) (sentBytes * factor));
+  }
+
+  /** The file is done, no matter if it was uploaded, skipped or failed */
+  void finished(Path file) {
+    doneBytes.addAndGet(sizes.getOrDefault(file, 0L));
+    running.remove(file);
+    reportIfDue();
+  }
+
+  /** Report the final state, even if the last report was just sent */
+  void finish() {
+    report(nanoTime.getAsLong());
+  }
+
+  private void sent(Path file, long sentBytes) {
+    final long now = nanoTime.getAsLong();
+    firstByteTime.compareAndSet(Long.MIN_VALUE, now);
+    // the request also has headers, they are not part of the size of the file
+    final long bytes = Math.min(sentBytes, sizes.getOrDefault(file, 0L));
+    final Long previous = running.put(file, bytes);
+    // a new attempt starts again at 0, its bytes are transferred again
+    transferredBytes.addAndGet(previous == null || previous > bytes ? bytes : bytes - previous);
+    reportIfDue();
+  }
+
+  private void reportIfDue() {
+    final long now = nanoTime.getAsLong();
+    final long next = nextReport.get();
+    if (now - next >= 0 && nextReport.compareAndSet(next, now + REPORT_INTERVAL.toNanos())) {
+      report(now);
+    }
+  }
+
+  private void report(long now) {
+    final List<FileProgress> files = running.entrySet().stream()
+      .map(it -> new FileProgress(it.getKey(), it.getValue(), sizes.getOrDefault(it.getKey(), 0L)))
+      .toList();
+    final long sentBytes = Math.min(totalBytes, doneBytes.get() + files.stream().mapToLong(FileProgress::sentBytes).sum());
+    final long start = firstByteTime.get();
+    final double bytesPerSecond = start == Long.MIN_VALUE || now == start
+                                  ? 0 : transferredBytes.get() * 1e9 / (now - start);
+    callback.progress(new UploadProgress(files, sentBytes, totalBytes, bytesPerSecond));
+  }
+}
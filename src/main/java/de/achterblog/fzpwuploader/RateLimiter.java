@@ -0,0 +1,94 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.achterblog.util.TokenBucket;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Limits the requests per second and the uploaded bytes per second, so the server is not flooded by
+ * bursts. The same limiter can be shared by several connections and batches, the limits are for all
+ * of them together.
+ * <p>
+ * The requests wait without blocking a thread, the bytes are paced while the request body is sent.
+ * The bodies that are sent at the same time share the byte rate, so the time a body needs grows with
+ * the bytes of all of them, see {@link #startBody(long)}.
+ *
+ * @author boris
+ */
+public final class RateLimiter {
+  /** Up to 100ms of the byte rate may be sent at once */
+  private static final int BYTE_BURSTS_PER_SECOND = 10;
+
+  private final @Nullable TokenBucket requests;
+  private final @Nullable TokenBucket bytes;
+  private final long bytesPerSecond;
+  /** The bytes of the bodies that are sent right now */
+  private final AtomicLong bytesInFlight = new AtomicLong();
+
+  /**
+   * @param requestsPerSecond The maximum requests per second, 0 for no limit
+   * @param bytesPerSecond The maximum uploaded bytes per second, 0 for no limit
+   */
+  public RateLimiter(double requestsPerSecond, long bytesPerSecond) {
+    if (requestsPerSecond < 0 || bytesPerSecond < 0) {
+      throw new IllegalArgumentException("The limits must not be negative");
+    }
+    this.requests = requestsPerSecond > 0 ? new TokenBucket(requestsPerSecond, 1) : null;
+    this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, Math.max(1, bytesPerSecond / BYTE_BURSTS_PER_SECOND)) : null;
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  /** Take the permission for a request, the result is the nanoseconds to wait before it may be sent */
+  long reserveRequest() {
+    return requests != null ? requests.reserve(1) : 0;
+  }
+
+  /**
+   * A body of {@code length} bytes starts to be sent, every started body must be ended with {@link #endBody(long)}.
+   *
+   * @return The time the bytes of this and of the other bodies that are sent now take at the byte rate, zero if
+   *         the bytes are not limited
+   */
+  Duration startBody(long length) {
+    return sendTime(bytesInFlight.addAndGet(length));
+  }
+
+  /** The time {@code length} bytes take at the byte rate, zero if the bytes are not limited */
+  Duration sendTime(long length) {
+    if (bytes == null) {
+      return Duration.ZERO;
+    }
+    return Duration.ofNanos((long) Math.ceil((double) length * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond));
+  }
+
+  /** The body that was started with {@link #startBody(long)} was sent or failed */
+  void endBody(long length) {
+    bytesInFlight.addAndGet(-length);
+  }
+
+  /** The bucket for the uploaded bytes, {@code null} if they are not limited */
+  @Nullable TokenBucket bytes() {
+    return bytes;
+  }
+}
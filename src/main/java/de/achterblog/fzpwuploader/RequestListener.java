@@ -0,0 +1,42 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.time.Duration;
+
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Gets the result of every upload request that is sent to the server, e.g. to adapt the number of parallel uploads.
+ * The other requests (login, logout) are not passed, their latency is not comparable to the one of an upload.
+ *
+ * @author boris
+ */
+@FunctionalInterface
+public interface RequestListener {
+  /**
+   * Called when an upload request is complete (every attempt on its own), it may be called concurrently from different threads
+   *
+   * @param latency The time from the end of the request body until the response (or the failure), so it does
+   *                not depend on the size of the file or the byte rate. If the body was not sent completely, the
+   *                time from sending the request.
+   * @param failure {@code null} if the server responded with status 200, else the reason of the failure
+   */
+  void requestCompleted(Duration latency, @Nullable Throwable failure);
+}
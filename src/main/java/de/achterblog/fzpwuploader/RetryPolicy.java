@@ -0,0 +1,97 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.With;
+
+/**
+ * Decides if and when a failed upload is sent again.
+ * <p>
+ * The delay before the n-th retry is a random value between zero and
+ * {@code min(maxDelay, initialDelay * 2^(n-1))} (exponential backoff with full jitter), so
+ * parallel uploads that failed at the same time do not hit the server at the same time again.
+ *
+ * @param maxAttempts The maximal number of attempts for one upload, including the first one
+ * @param initialDelay The upper bound of the delay before the first retry
+ * @param maxDelay The upper bound of the delay before any retry
+ * @param retryableStatusCodes The http status codes of responses that are worth another attempt
+ * @param retryableExceptions The types of exceptions that are worth another attempt (including subtypes)
+ * @author boris
+ */
+@With
+public record RetryPolicy(int maxAttempts, Duration initialDelay, Duration maxDelay, Set<Integer> retryableStatusCodes,
+                          List<Class<? extends IOException>> retryableExceptions) {
+  /** Retries timeouts, lost connections and errors of an overloaded server two times */
+  public static final RetryPolicy DEFAULT = new RetryPolicy(3, Duration.ofSeconds(1), Duration.ofSeconds(30),
+                                                            Set.of(408, 429, 500, 502, 503, 504),
+                                                            List.of(HttpTimeoutException.class, ConnectException.class,
+                                                                    SocketException.class, EOFException.class));
+  /** Never retries */
+  public static final RetryPolicy NONE = DEFAULT.withMaxAttempts(1);
+
+  public RetryPolicy {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be positive");
+    }
+    if (initialDelay.isNegative() || maxDelay.isNegative()) {
+      throw new IllegalArgumentException("delays must not be negative");
+    }
+    retryableStatusCodes = Set.copyOf(retryableStatusCodes);
+    retryableExceptions = List.copyOf(retryableExceptions);
+  }
+
+  /**
+   * Check if another attempt should be made
+   *
+   * @param attempt The number of the attempt that failed, starting with 1
+   * @param failure The reason of the failure
+   */
+  boolean shouldRetry(int attempt, Throwable failure) {
+    if (attempt >= maxAttempts) {
+      return false;
+    }
+    if (failure instanceof HttpStatusException statusException) {
+      return retryableStatusCodes.contains(statusException.getStatusCode());
+    }
+    return retryableExceptions.stream().anyMatch(it -> it.isInstance(failure));
+  }
+
+  /**
+   * Get the delay before the next attempt
+   *
+   * @param attempt The number of the attempt that failed, starting with 1
+   */
+  Duration delayAfter(int attempt) {
+    final long maxMillis = maxDelay.toMillis();
+    final long initialMillis = initialDelay.toMillis();
+    final long factor = 1L << Math.min(attempt - 1, 30);
+    final long backoffMillis = initialMillis > maxMillis / factor ? maxMillis : initialMillis * factor;
+    return Duration.ofMillis(ThreadLocalRandom.current().nextLong(backoffMillis + 1));
+  }
+}
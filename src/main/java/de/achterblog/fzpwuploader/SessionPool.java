@@ -0,0 +1,337 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+import de.achterblog.util.log.Level;
+import de.achterblog.util.log.Logger;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * An {@link UploadConnection} that spreads the uploads over up to {@code maxSessions} independently
+ * logged in connections, each used for at most {@code uploadsPerSession} uploads at the same time.
+ * <p>
+ * {@link #loginAsync(String, String)} logs in the first session, the others are created lazily when
+ * all slots of the existing sessions are in use. A session that is no longer logged in or that got a
+ * response without a URL is retired: it gets no new uploads and is logged out once its running
+ * uploads are done, a new session replaces it when it is needed. {@link #logoutAsync()} logs out all
+ * sessions.
+ *
+ * @author boris
+ */
+public final class SessionPool implements UploadConnection {
+  private final Supplier<UploadConnection> connections;
+  private final int maxSessions;
+  private final int uploadsPerSession;
+
+  private final Object lock = new Object();
+  private final List<PooledSession> sessions = new ArrayList<>();
+  /** Contains every session once for each of its free slots */
+  private final Deque<PooledSession> freeSlots = new ArrayDeque<>();
+  private final Queue<CompletableFuture<PooledSession>> waiting = new ArrayDeque<>();
+  private int creating = 0;
+  private String user = "";
+  private String password = "";
+  private volatile LoginStatus loginStatus = LoginStatus.DISCONNECTED;
+
+  public SessionPool(Supplier<UploadConnection> connections, int maxSessions, int uploadsPerSession) {
+    if (maxSessions < 1 || uploadsPerSession < 1) {
+      throw new IllegalArgumentException("maxSessions and uploadsPerSession must be positive");
+    }
+    this.connections = connections;
+    this.maxSessions = maxSessions;
+    this.uploadsPerSession = uploadsPerSession;
+  }
+
+  @Override
+  public CompletableFuture<LoginStatus> loginAsync(String user, String password) {
+    synchronized (lock) {
+      if (loginStatus == LoginStatus.LOGGED_IN) {
+        throw new IllegalStateException("Cannot login twice");
+      }
+      this.user = user;
+      this.password = password;
+      creating++;
+    }
+    final UploadConnection con = connections.get();
+    return con.loginAsync(user, password).handle((status, e) -> {
+      final List<CompletableFuture<PooledSession>> waiters = new ArrayList<>();
+      final PooledSession session = new PooledSession(con);
+      synchronized (lock) {
+        creating--;
+        loginStatus = e == null ? status : LoginStatus.UNKNOWN;
+        if (loginStatus == LoginStatus.LOGGED_IN) {
+          addSessionLocked(session, waiters);
+        }
+      }
+      if (loginStatus != LoginStatus.LOGGED_IN) {
+        session.logout();
+      }
+      waiters.forEach(it -> it.complete(session));
+      if (e != null) {
+        throw e instanceof CompletionException ce ? ce : new CompletionException(e);
+      }
+      return status;
+    });
+  }
+
+  @Override
+  public CompletableFuture<String> uploadAsync(Path file) {
+    return uploadAsync(file, _ -> {});
+  }
+
+  @Override
+  public CompletableFuture<String> uploadAsync(Path file, LongConsumer bytesSent) {
+    return uploadAsync(con -> con.uploadAsync(file, bytesSent));
+  }
+
+  @Override
+  public CompletableFuture<String> uploadAsync(Path file, ByteBuffer content, LongConsumer bytesSent) {
+    return uploadAsync(con -> con.uploadAsync(file, content, bytesSent));
+  }
+
+  /** Run the upload on the next free session */
+  private CompletableFuture<String> uploadAsync(Function<UploadConnection, CompletableFuture<String>> uploader) {
+    final var result = new CompletableFuture<String>();
+    borrow().whenComplete((session, borrowError) -> {
+      if (borrowError != null) {
+        result.completeExceptionally(borrowError);
+        return;
+      }
+      CompletableFuture<String> upload;
+      try {
+        upload = result.isDone() ? CompletableFuture.failedFuture(new CancellationException("The upload was aborted"))
+                                 : uploader.apply(session.con);
+      } catch (RuntimeException e) {
+        upload = CompletableFuture.failedFuture(e);
+      }
+      final CompletableFuture<String> running = upload;
+      // a caller that fails the result (e.g. with a timeout) aborts the upload of the session
+      result.whenComplete((_, e) -> {
+        if (e != null) {
+          running.completeExceptionally(e);
+        }
+      });
+      running.whenComplete((url, e) -> {
+        giveBack(session, e);
+        if (e == null) {
+          result.complete(url);
+        } else {
+          result.completeExceptionally(e);
+        }
+      });
+    });
+    return result;
+  }
+
+  @Override
+  public CompletableFuture<Boolean> logoutAsync() {
+    final List<PooledSession> idle = new ArrayList<>();
+    final List<CompletableFuture<PooledSession>> waiters;
+    synchronized (lock) {
+      loginStatus = LoginStatus.LOGGED_OUT;
+      for (PooledSession session : sessions) {
+        session.retired = true;
+        if (session.inUse == 0) {
+          idle.add(session);
+        }
+      }
+      sessions.clear();
+      freeSlots.clear();
+      waiters = List.copyOf(waiting);
+      waiting.clear();
+    }
+    waiters.forEach(it -> it.completeExceptionally(new IllegalStateException("The connection was logged out")));
+    final List<CompletableFuture<Boolean>> logouts = idle.stream().map(PooledSession::logout).toList();
+    return CompletableFuture.allOf(logouts.toArray(CompletableFuture[]::new))
+      .thenApply(_ -> logouts.stream().allMatch(CompletableFuture::join));
+  }
+
+  @Override
+  public void disconnect() {
+    loginStatus = LoginStatus.DISCONNECTED;
+  }
+
+  @Override
+  public LoginStatus getLoginStatus() {
+    return loginStatus;
+  }
+
+  /** The number of sessions that are currently logged in */
+  public int getSessionCount() {
+    synchronized (lock) {
+      return sessions.size();
+    }
+  }
+
+  private CompletableFuture<PooledSession> borrow() {
+    final var result = new CompletableFuture<PooledSession>();
+    synchronized (lock) {
+      if (loginStatus != LoginStatus.LOGGED_IN) {
+        throw new IllegalStateException("The connection is not logged in");
+      }
+      PooledSession session;
+      while ((session = freeSlots.poll()) != null) {
+        if (session.con.getLoginStatus() == LoginStatus.LOGGED_IN) {
+          session.inUse++;
+          return CompletableFuture.completedFuture(session);
+        }
+        retireLocked(session);
+      }
+      waiting.add(result);
+      if (sessions.size() + creating >= maxSessions) {
+        return result;
+      }
+      creating++;
+    }
+    createSession();
+    return result;
+  }
+
+  /** Log in a new session for the waiting uploads, the caller must have incremented {@link #creating} */
+  private void createSession() {
+    final UploadConnection con = connections.get();
+    CompletableFuture<LoginStatus> login;
+    try {
+      login = con.loginAsync(user, password);
+    } catch (RuntimeException e) {
+      login = CompletableFuture.failedFuture(e);
+    }
+    login.whenComplete((status, e) -> {
+      final var session = new PooledSession(con);
+      final List<CompletableFuture<PooledSession>> waiters = new ArrayList<>();
+      @Nullable CompletableFuture<PooledSession> failed = null;
+      boolean retry = false;
+      synchronized (lock) {
+        creating--;
+        if (e == null && status == LoginStatus.LOGGED_IN && loginStatus == LoginStatus.LOGGED_IN) {
+          addSessionLocked(session, waiters);
+        } else {
+          // every waiting upload gets at most one failed login, so this does not loop forever
+          failed = waiting.poll();
+          retry = !waiting.isEmpty() && sessions.size() + creating < maxSessions && loginStatus == LoginStatus.LOGGED_IN;
+          if (retry) {
+            creating++;
+          }
+        }
+      }
+      waiters.forEach(it -> it.complete(session));
+      if (failed != null || !waiters.isEmpty() && session.retired) {
+        Logger.log(Level.WARN, () -> "Could not log in another session: " + (e != null ? e : status));
+        session.logout();
+      }
+      if (failed != null) {
+        failed.completeExceptionally(e != null ? e : new UploadException("Failed to login user " + user + ": " + status));
+      }
+      if (retry) {
+        createSession();
+      }
+    });
+  }
+
+  private void giveBack(PooledSession session, @Nullable Throwable e) {
+    final @Nullable CompletableFuture<PooledSession> waiter;
+    boolean replace = false;
+    boolean logout;
+    synchronized (lock) {
+      if (!session.retired && !isHealthy(session, e)) {
+        Logger.log(Level.INFO, "Retiring a session of the pool after a failed upload");
+        retireLocked(session);
+      }
+      session.inUse--;
+      waiter = session.retired ? null : waiting.poll();
+      if (waiter != null) {
+        session.inUse++;
+      } else if (!session.retired) {
+        freeSlots.push(session);
+      } else if (!waiting.isEmpty() && sessions.size() + creating < maxSessions && loginStatus == LoginStatus.LOGGED_IN) {
+        creating++;
+        replace = true;
+      }
+      logout = session.retired && session.inUse == 0;
+    }
+    if (waiter != null) {
+      waiter.complete(session);
+    }
+    if (logout) {
+      session.logout();
+    }
+    if (replace) {
+      createSession();
+    }
+  }
+
+  /** The first slot of the new session is for the first waiting upload, the others are free or for other waiting uploads */
+  private void addSessionLocked(PooledSession session, List<CompletableFuture<PooledSession>> waiters) {
+    sessions.add(session);
+    for (int i = 0; i < uploadsPerSession; i++) {
+      final CompletableFuture<PooledSession> waiter = waiting.poll();
+      if (waiter != null) {
+        session.inUse++;
+        waiters.add(waiter);
+      } else {
+        freeSlots.add(session);
+      }
+    }
+  }
+
+  private void retireLocked(PooledSession session) {
+    session.retired = true;
+    sessions.remove(session);
+    freeSlots.removeIf(it -> it == session);
+  }
+
+  private static boolean isHealthy(PooledSession session, @Nullable Throwable e) {
+    return session.con.getLoginStatus() == LoginStatus.LOGGED_IN && !indicatesExpiredLogin(e);
+  }
+
+  /** Package private for the {@link HotFolder}: check if an upload failed because the login is no longer valid */
+  static boolean indicatesExpiredLogin(@Nullable Throwable e) {
+    final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    // a response without URL (but with http status 200) may be the login page of an expired session
+    return cause instanceof UploadException && !(cause instanceof HttpStatusException);
+  }
+
+  private static final class PooledSession {
+    private final UploadConnection con;
+    private int inUse = 0;
+    private boolean retired = false;
+
+    PooledSession(UploadConnection con) {
+      this.con = con;
+    }
+
+    CompletableFuture<Boolean> logout() {
+      return con.logoutAsync().whenComplete((_, _) -> con.disconnect());
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Clock;
+import java.time.InstantSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import de.achterblog.util.log.Level;
+import de.achterblog.util.log.Logger;
+
+/**
+ * Keeps the cookies of a logged in session in a file, so later batches (and later runs of the
+ * application) can use the session without logging in again.
+ * <p>
+ * The first line of the file is the user of the session, the cookies of another user are never used.
+ * Every other line is a cookie with its expiry, cookies that have expired are not loaded. Cookies
+ * without an expiry are kept as well, the {@link FZPWUploadConnection} checks if the server still
+ * accepts them before it uses them.
+ * <p>
+ * The expiry of a cookie is fixed when the store sees it for the first time (when it is loaded or
+ * saved first), saving the same cookie again later does not extend it.
+ *
+ * @author boris
+ */
+public final class SessionStore {
+  private static final long NO_EXPIRY = -1;
+
+  private final Path file;
+  private final InstantSource clock;
+  /** The absolute expiry of the cookies that were loaded or saved last, by identity */
+  private final Map<HttpCookie, Long> expiries = new IdentityHashMap<>();
+
+  public SessionStore(Path file) {
+    this(file, Clock.systemUTC());
+  }
+
+  /** Package private constructor for the test-cases */
+  SessionStore(Path file, InstantSource clock) {
+    this.file = file;
+    this.clock = clock;
+  }
+
+  /**
+   * Load the cookies of the user's session
+   *
+   * @return The cookies that have not expired yet, an empty list if there is no session of this user
+   */
+  public synchronized List<HttpCookie> load(String user) throws IOException {
+    final List<String> lines;
+    try {
+      lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    } catch (NoSuchFileException e) {
+      return List.of();
+    }
+    if (lines.isEmpty() || !lines.getFirst().equals(encode(user))) {
+      return List.of();
+    }
+    final long now = clock.millis() / 1000;
+    final List<HttpCookie> cookies = new ArrayList<>();
+    for (String line : lines.subList(1, lines.size())) {
+      StoredCookie.parse(line)
+        .filter(it -> it.expiresAt() == NO_EXPIRY || it.expiresAt() > now)
+        .ifPresent(it -> {
+          final HttpCookie cookie = it.toCookie(now);
+          expiries.put(cookie, it.expiresAt());
+          cookies.add(cookie);
+        });
+    }
+    return cookies;
+  }
+
+  /** Replace the stored session by the cookies of the user's session, expired cookies are not stored */
+  public synchronized void save(String user, Collection<HttpCookie> cookies) throws IOException {
+    final long now = clock.millis() / 1000;
+    final var content = new StringBuilder(encode(user)).append('\n');
+    final Map<HttpCookie, Long> saved = new IdentityHashMap<>();
+    for (HttpCookie cookie : cookies) {
+      if (!cookie.hasExpired()) {
+        // the max age is relative to the creation of the cookie, so it is only added to the time it was first seen
+        final Long known = expiries.get(cookie);
+        final long expiresAt = known != null ? known : cookie.getMaxAge() < 0 ? NO_EXPIRY : now + cookie.getMaxAge();
+        saved.put(cookie, expiresAt);
+        content.append(StoredCookie.of(cookie, expiresAt).format()).append('\n');
+      }
+    }
+    expiries.clear();
+    expiries.putAll(saved);
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    final Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.deleteIfExists(tempFile);
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      // the cookies are as good as the password, so only the user may read them
+      Files.createFile(tempFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    }
+    Files.writeString(tempFile, content, StandardCharsets.UTF_8);
+    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Forget the stored session, e.g. after a logout */
+  public synchronized void clear() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  private static String encode(String s) {
+    return URLEncoder.encode(s, StandardCharsets.UTF_8);
+  }
+
+  private static String decode(String s) {
+    return URLDecoder.decode(s, StandardCharsets.UTF_8);
+  }
+
+  /** A cookie as it is stored in the file, with the absolute expiry in epoch seconds */
+  private record StoredCookie(String name, String value, long expiresAt, String path, String domain) {
+    static StoredCookie of(HttpCookie cookie, long expiresAt) {
+      return new StoredCookie(cookie.getName(), cookie.getValue(), expiresAt, Optional.ofNullable(cookie.getPath()).orElse(""),
+                              Optional.ofNullable(cookie.getDomain()).orElse(""));
+    }
+
+    static Optional<StoredCookie> parse(String line) {
+      final String[] parts = line.split("\t", -1);
+      try {
+        return Optional.of(new StoredCookie(decode(parts[0]), decode(parts[1]), Long.parseLong(parts[2]), decode(parts[3]), decode(parts[4])));
+      } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+        Logger.log(Level.WARN, () -> "Ignoring invalid line in the session file: " + e);
+        return Optional.empty();
+      }
+    }
+
+    String format() {
+      return String.join("\t", encode(name), encode(value), Long.toString(expiresAt), encode(path), encode(domain));
+    }
+
+    HttpCookie toCookie(long now) {
+      final var cookie = new HttpCookie(name, value);
+      cookie.setMaxAge(expiresAt == NO_EXPIRY ? -1 : expiresAt - now);
+      cookie.setVersion(0);
+      if (!path.isEmpty()) {
+        cookie.setPath(path);
+      }
+      if (!domain.isEmpty()) {
+        cookie.setDomain(domain);
+      }
+      return cookie;
+    }
+  }
+}
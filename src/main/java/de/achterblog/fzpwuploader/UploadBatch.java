@@ -19,91 +19,630 @@
 package de.achterblog.fzpwuploader;
 
 import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import de.achterblog.fzpwuploader.UploadConnection.LoginStatus;
+import de.achterblog.util.AdaptiveLimiter;
+import de.achterblog.util.AsyncLimiter;
+import de.achterblog.util.JpegSegmentFilter;
 import de.achterblog.util.log.Level;
 import de.achterblog.util.log.Logger;
+import lombok.With;
+import org.jspecify.annotations.Nullable;
 
 /**
  * Logs in, uploads multiple files in a single batch and logs out.
+ * <p>
+ * Up to {@code parallelUploads} files are uploaded at the same time using the same login, in the
+ * order of the {@link SchedulingPolicy}. The output is always in the order of the given file list. The batch is chained on the asynchronous
+ * methods of the {@link UploadConnection}, so no thread waits for the server. The callbacks and the
+ * work around the uploads (e.g. the lookups in the journal and the cache) run on virtual threads, so a
+ * callback that blocks costs almost nothing. Only the {@link UploadProgress} of the sent bytes is
+ * reported a few times per second from the threads that send the files.
+ * <p>
+ * If an {@link UploadJournal} is set, every uploaded file is recorded in it and files that are already
+ * in the journal are not uploaded again, so an interrupted batch can be resumed by starting it again.
+ * If an {@link UploadCache} is set, files with a content that was already uploaded are not uploaded
+ * again, but get the URL of the earlier upload.
+ * <p>
+ * The server only accepts {@code chunkSize} files per batch, larger file lists are split into chunks
+ * that are uploaded one after another. Unless {@code reuseLogin} is set, every chunk uses a new login,
+ * which is already done once the previous chunk started uploading. So no more than two logins are
+ * used at the same time, the one that uploads and the one of the next chunk.
+ * <p>
+ * With more than one of {@code sessions}, the parallel uploads are spread over a {@link SessionPool}
+ * of independently logged in connections.
+ * <p>
+ * If a {@link SessionStore} is set (and only one session is used), the login is kept in it and the
+ * batch does not log out at the end, so the next batch can use the same login. Use {@link #logoutAsync()}
+ * to end it.
+ * <p>
+ * If an {@link AdaptiveLimiter} is set, it replaces the fixed limit of {@code parallelUploads}: it
+ * gets the latency of the server after the body of every upload request (not of the logins, and not the
+ * time the file needs to be sent, so uploads of different sizes are compared with each other), raises
+ * the limit while the latency stays flat and lowers it when the server is overloaded. The same
+ * limiter can be used for several batches to keep what it learned.
+ * A {@link RateLimiter} limits the requests and uploaded bytes per second of all connections of the batch.
+ * <p>
+ * A batch is stopped with its {@link Cancellation} or when the {@code batchTimeout} passed. The files
+ * that were not uploaded until then fail, the running uploads are aborted. Every file has to be uploaded
+ * within the {@code fileDeadline} after the batch was started, including the time it waits for its turn.
+ * Without a deadline only the attempts of the upload itself are limited.
+ * <p>
+ * With an {@link ImageResizer}, large images are downscaled before they are uploaded. This runs in a pool
+ * with a thread per core while the files that are already downscaled are uploaded, and the downscaled
+ * image is sent from memory. Files that cannot be downscaled are uploaded as they are. A
+ * {@link JpegSegmentFilter} removes metadata from the files that are uploaded without downscaling.
  *
  * @author boris
  */
-public record UploadBatch(String username, String password, UploadBatchCallback callback) {
+@With
+public record UploadBatch(String username, String password, UploadBatchCallback callback, int parallelUploads,
+                          RetryPolicy retryPolicy, @Nullable UploadJournal journal, @Nullable UploadCache cache,
+                          int chunkSize, boolean reuseLogin, int sessions,
+                          @Nullable SessionStore sessionStore, @Nullable AdaptiveLimiter adaptiveLimiter,
+                          @Nullable RateLimiter rateLimiter, SchedulingPolicy schedulingPolicy,
+                          @Nullable Cancellation cancellation, @Nullable Duration batchTimeout,
+                          @Nullable Duration fileDeadline, @Nullable ImageResizer imageResizer,
+                          @Nullable JpegSegmentFilter segmentFilter) {
+  /** The number of parallel uploads if nothing else is configured */
+  public static final int DEFAULT_PARALLEL_UPLOADS = 4;
+  /** The number of files the server accepts in one batch */
+  public static final int DEFAULT_CHUNK_SIZE = 20;
+  /** The time a single attempt to upload a file may take, plus the time it takes at the byte rate */
+  private static final Duration ATTEMPT_TIMEOUT = Duration.ofMinutes(2);
 
+  public UploadBatch {
+    if (parallelUploads < 1) {
+      throw new IllegalArgumentException("parallelUploads must be positive");
+    }
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be positive");
+    }
+    if (sessions < 1) {
+      throw new IllegalArgumentException("sessions must be positive");
+    }
+  }
+
+  public UploadBatch(String username, String password, UploadBatchCallback callback) {
+    this(username, password, callback, DEFAULT_PARALLEL_UPLOADS, RetryPolicy.DEFAULT, null, null,
+         DEFAULT_CHUNK_SIZE, false, 1, null, null, null, SchedulingPolicy.FIFO, null, null, null, null, null);
+  }
+
+  /** Upload the files and wait for the result, see {@link #uploadAsync(Iterable)} */
   public String upload(Iterable<Path> fileList) {
-    final UploadConnection con = new FZPWUploadConnection();
-    final StringBuilder buffer = new StringBuilder(512);
+    return upload(fileList, this::newConnection);
+  }
 
-    try (final ExecutorService exe = Executors.newSingleThreadExecutor()) {
-      final LoginStatus loginStatus = con.login(username, password);
-      if (loginStatus != UploadConnection.LoginStatus.LOGGED_IN) {
-        return "Failed to login user " + username + ": " + loginStatus;
+  /** Package private for the test-cases */
+  String upload(Iterable<Path> fileList, Supplier<UploadConnection> connections) {
+    return uploadAsync(fileList, connections).join();
+  }
+
+  /**
+   * Upload the files without blocking the calling thread.
+   *
+   * @return A future for the URLs (or error messages) of all files. It does not fail, errors are part of the text.
+   */
+  public CompletableFuture<String> uploadAsync(Iterable<Path> fileList) {
+    return uploadAsync(fileList, this::newConnection);
+  }
+
+  /** Package private for the test-cases */
+  CompletableFuture<String> uploadAsync(Iterable<Path> fileList, Supplier<UploadConnection> connections) {
+    return uploadResultsAsync(fileList, connections)
+      .thenApply(results -> results.stream().map(UploadResult::toText).collect(Collectors.joining()))
+      .exceptionally(e -> {
+        if (e.getCause() instanceof CancellationException || e.getCause() instanceof TimeoutException) {
+          Logger.log(Level.INFO, e.getCause().getMessage());
+          return e.getCause().getMessage();
+        }
+        if (e.getCause() instanceof UploadException uploadException) {
+          Logger.log(Level.INFO, uploadException.getMessage());
+          return uploadException.getMessage();
+        }
+        Logger.log(Level.ERROR, "Exception in GUI", e);
+        return "";
+      });
+  }
+
+  /**
+   * Upload the files without blocking the calling thread. The result of every single file is also
+   * passed to the {@link UploadBatchCallback} as soon as it is known.
+   *
+   * @return A future for the results in the order of the file list. It fails if the first login did
+   *         not work, if a later login fails the files of its chunk are failed results. Cancelling the
+   *         future does not stop the uploads, use the {@link Cancellation} of the batch for that.
+   */
+  public CompletableFuture<List<UploadResult>> uploadResultsAsync(Iterable<Path> fileList) {
+    return uploadResultsAsync(fileList, this::newConnection);
+  }
+
+  /** Package private for the test-cases */
+  CompletableFuture<List<UploadResult>> uploadResultsAsync(Iterable<Path> fileList, Supplier<UploadConnection> connections) {
+    final List<Path> files = new ArrayList<>();
+    fileList.forEach(files::add);
+    final List<Integer> order = schedulingPolicy.order(files);
+    final ExecutorService exe = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("upload-", 0).factory());
+    final @Nullable ExecutorService resizeExe = imageResizer != null ? imageResizer.createExecutor() : null;
+    final List<List<Path>> chunks = chunk(order.stream().map(files::get).toList());
+    final List<CompletableFuture<?>> logouts = new ArrayList<>();
+    final List<CompletableFuture<List<UploadResult>>> chunkResults = new ArrayList<>();
+    final CompletableFuture<Throwable> stop = stopSignal();
+    final CompletableFuture<Throwable> deadline = deadlineSignal();
+    final var progress = new ProgressTracker(callback, files);
+
+    final Session first = new Session(connections.get(), stop);
+    first.login(CompletableFuture.completedFuture(null));
+    Session session = first;
+    CompletableFuture<?> previousChunk = CompletableFuture.completedFuture(null);
+    CompletableFuture<?> previousStart = CompletableFuture.completedFuture(null);
+    CompletableFuture<?> olderLogout = CompletableFuture.completedFuture(null);
+    for (final List<Path> chunk : chunks) {
+      if (!chunkResults.isEmpty() && !reuseLogin) {
+        final CompletableFuture<?> logout = session.logoutAfterLastChunk();
+        logouts.add(logout);
+        final var next = new Session(connections.get(), stop);
+        // log in while the previous chunk is uploading: once it started, which means its login worked, and once
+        // the session before it logged out, so no more than two sessions are logged in at the same time
+        next.login(previousStart.thenCombine(olderLogout.handle((_, _) -> null), (_, _) -> null));
+        olderLogout = logout;
+        session = next;
       }
-      final List<UploadFuture> futures = new ArrayList<>();
-      for (final Path cur : fileList) {
-        Future<String> f = exe.submit(() -> {
-          try {
-            Logger.log(Level.DEBUG, () -> "Starting upload for file " + cur);
-            String result = con.upload(cur);
-            callback.uploaded(cur);
-            return result;
-          } catch (UploadException | IOException | IllegalStateException e) {
-            callback.failed(cur);
-            throw new UploadException(e.getMessage(), e);
-          }
-        });
-        futures.add(new UploadFuture(cur, f));
+      final Session current = session;
+      final CompletableFuture<Void> start = previousChunk
+        .handle((_, _) -> null)
+        .thenCompose(_ -> current.loggedIn);
+      final CompletableFuture<List<UploadResult>> chunkResult = start
+        .thenComposeAsync(_ -> uploadAll(chunk, current.con, exe, resizeExe, stop, deadline, progress), exe);
+      current.lastChunk = chunkResult;
+      chunkResults.add(chunkResult);
+      previousChunk = chunkResult;
+      previousStart = start;
+    }
+    logouts.add(session.logoutAfterLastChunk());
+
+    final CompletableFuture<Void> firstLogin = first.loggedIn;
+    return CompletableFuture.allOf(logouts.toArray(CompletableFuture[]::new))
+      .thenComposeAsync(_ -> {
+        exe.shutdown();
+        if (resizeExe != null) {
+          resizeExe.shutdown();
+        }
+        // the batch is done, a later timeout must not do anything
+        stop.complete(null);
+        deadline.complete(null);
+        if (firstLogin.isCompletedExceptionally()) {
+          return firstLogin.thenApply(_ -> List.<UploadResult>of());
+        }
+        final List<UploadResult> scheduled = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+          scheduled.addAll(chunkResults.get(i).exceptionally(failedChunk(chunks.get(i))).join());
+        }
+        // back to the order of the file list
+        final var results = new UploadResult[scheduled.size()];
+        for (int i = 0; i < results.length; i++) {
+          results[order.get(i)] = scheduled.get(i);
+        }
+        progress.finish();
+        return CompletableFuture.completedFuture(List.of(results));
+      }, exe);
+  }
+
+  /**
+   * A future that completes with the reason when the batch is stopped by its {@link Cancellation} or its timeout.
+   * It completes with {@code null} if the batch finished before.
+   */
+  private CompletableFuture<Throwable> stopSignal() {
+    final CompletableFuture<Throwable> stop = new CompletableFuture<>();
+    if (cancellation != null) {
+      cancellation.onCancel(() -> stop.complete(new CancellationException("The batch was cancelled")));
+    }
+    if (batchTimeout != null) {
+      stop.completeOnTimeout(new TimeoutException("The batch did not finish within " + batchTimeout),
+                             batchTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+    stop.thenAccept(reason -> {
+      if (reason != null) {
+        Logger.log(Level.INFO, "Stopping the batch: " + reason.getMessage());
       }
-      for (UploadFuture cur : futures) {
-        try {
-          String url = cur.future.get(2, TimeUnit.MINUTES);
-          buffer.append(url).append('\n');
-          buffer.append(cur.path.getFileName()).append("\n\n");
-        } catch (InterruptedException e) {
-          Thread.currentThread().interrupt();
-        } catch (ExecutionException | TimeoutException e) {
-          Logger.log(Level.ERROR, "Exception while executing upload: ", e);
-          buffer.append("Failed to upload file").append(cur.path.getFileName())
-            .append(" (").append(e.getClass().getSimpleName()).append(": ").append(e.getMessage()).append(")\n\n");
+    });
+    return stop;
+  }
+
+  /**
+   * A future that completes with a {@link TimeoutException} when the {@code fileDeadline} after the start of the batch
+   * passed, the files that are not uploaded until then fail with it. It completes with {@code null} if the batch
+   * finished before or if there is no deadline.
+   */
+  private CompletableFuture<Throwable> deadlineSignal() {
+    final CompletableFuture<Throwable> deadline = new CompletableFuture<>();
+    if (fileDeadline != null) {
+      deadline.completeOnTimeout(new TimeoutException("The file was not uploaded within " + fileDeadline + " after the start of the batch"),
+                                 fileDeadline.toMillis(), TimeUnit.MILLISECONDS);
+    }
+    return deadline;
+  }
+
+  /** The results for a chunk that could not be uploaded at all */
+  private Function<Throwable, List<UploadResult>> failedChunk(List<Path> chunk) {
+    return e -> {
+      Logger.log(Level.ERROR, "Could not upload a chunk of " + chunk.size() + " files", e);
+      return chunk.stream().map(file -> {
+        final UploadResult result = UploadResult.failure(file, e);
+        callback.failed(file, Objects.requireNonNull(result.error()));
+        return result;
+      }).toList();
+    };
+  }
+
+  private List<List<Path>> chunk(Iterable<Path> fileList) {
+    final List<List<Path>> chunks = new ArrayList<>();
+    List<Path> chunk = new ArrayList<>();
+    for (final Path cur : fileList) {
+      if (chunk.size() == chunkSize) {
+        chunks.add(chunk);
+        chunk = new ArrayList<>();
+      }
+      chunk.add(cur);
+    }
+    if (!chunk.isEmpty() || chunks.isEmpty()) {
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  /**
+   * Log out the login that is kept in the {@link SessionStore}
+   *
+   * @return A future that is true if the logout worked or there was nothing to log out
+   */
+  public CompletableFuture<Boolean> logoutAsync() {
+    if (sessionStore == null) {
+      return CompletableFuture.completedFuture(true);
+    }
+    final UploadConnection con = newConnection();
+    return con.loginAsync(username, password)
+      .thenCompose(status -> status == LoginStatus.LOGGED_IN ? con.logoutAsync() : CompletableFuture.completedFuture(false))
+      .whenComplete((_, _) -> con.disconnect());
+  }
+
+  /** Package private for the {@link HotFolder} */
+  boolean keepsLogin() {
+    return sessionStore != null && sessions == 1;
+  }
+
+  /** Package private for the {@link HotFolder} */
+  UploadConnection newConnection() {
+    if (sessions == 1) {
+      return newFZPWConnection(sessionStore);
+    }
+    return new SessionPool(() -> newFZPWConnection(null), sessions, Math.ceilDiv(parallelUploads, sessions));
+  }
+
+  private FZPWUploadConnection newFZPWConnection(@Nullable SessionStore store) {
+    final var con = new FZPWUploadConnection(retryPolicy, store);
+    con.setRateLimiter(rateLimiter);
+    con.setSegmentFilter(segmentFilter);
+    if (adaptiveLimiter != null) {
+      con.setRequestListener(this::adaptLimit);
+    }
+    return con;
+  }
+
+  /** Server errors and timeouts mean that the server is overloaded, other failures do not say anything about the load */
+  private void adaptLimit(Duration latency, @Nullable Throwable failure) {
+    final AdaptiveLimiter limiter = Objects.requireNonNull(adaptiveLimiter);
+    if (failure == null) {
+      limiter.onSuccess(latency);
+    } else if (failure instanceof HttpTimeoutException || failure instanceof TimeoutException
+               || failure instanceof HttpStatusException e && (e.getStatusCode() >= 500 || e.getStatusCode() == 429)) {
+      limiter.onOverload(latency);
+    }
+  }
+
+  private CompletableFuture<List<UploadResult>> uploadAll(Iterable<Path> fileList, UploadConnection con, Executor exe,
+                                                          @Nullable Executor resizeExe, CompletableFuture<Throwable> stop,
+                                                          CompletableFuture<Throwable> deadline, ProgressTracker progress) {
+    final AsyncLimiter limiter = adaptiveLimiter != null ? adaptiveLimiter : new AsyncLimiter(parallelUploads);
+    final List<CompletableFuture<UploadResult>> futures = new ArrayList<>();
+    for (final Path cur : fileList) {
+      futures.add(uploadFile(con, limiter, cur, exe, resizeExe, stop, deadline, progress));
+    }
+    return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+      .thenApply(_ -> futures.stream().map(CompletableFuture::join).toList());
+  }
+
+  private CompletableFuture<UploadResult> uploadFile(UploadConnection con, AsyncLimiter limiter, Path cur, Executor exe,
+                                                     @Nullable Executor resizeExe, CompletableFuture<Throwable> stop,
+                                                     CompletableFuture<Throwable> deadline, ProgressTracker progress) {
+    // completed by the upload, or failed early by the deadline or when the batch is stopped
+    final CompletableFuture<String> urlFuture = new CompletableFuture<>();
+    stop.thenAccept(reason -> {
+      if (reason != null) {
+        urlFuture.completeExceptionally(reason);
+      }
+    });
+    deadline.thenAccept(reason -> {
+      if (reason != null) {
+        urlFuture.completeExceptionally(reason);
+      }
+    });
+    // without journal and cache the files wait for the limiter exactly in the order of the scheduling policy
+    final CompletableFuture<Optional<String>> knownUrlFuture = journal == null && cache == null
+                                                               ? CompletableFuture.completedFuture(Optional.empty())
+                                                               : CompletableFuture.supplyAsync(() -> lookupKnownUrl(cur), exe);
+    final CompletableFuture<String> work = knownUrlFuture
+      .thenCompose(knownUrl -> knownUrl
+        .map(CompletableFuture::completedFuture)
+        .orElseGet(() -> resize(cur, urlFuture, resizeExe)
+          .thenCompose(content -> limiter.acquire()
+            .thenComposeAsync(_ -> sendFile(con, cur, content, urlFuture, progress), exe)
+            .whenComplete((_, _) -> limiter.release()))))
+      .whenComplete((url, e) -> {
+        if (e == null) {
+          urlFuture.complete(url);
+        } else {
+          urlFuture.completeExceptionally(e);
         }
+      });
+    final CompletableFuture<UploadResult> result = urlFuture
+      .handleAsync((url, e) -> {
+        progress.finished(cur);
+        if (e == null) {
+          callback.uploaded(cur, url);
+          return UploadResult.success(cur, url);
+        }
+        final UploadResult failure = UploadResult.failure(cur, e);
+        Logger.log(Level.ERROR, "Exception while executing upload: ", failure.error());
+        callback.failed(cur, Objects.requireNonNull(failure.error()));
+        return failure;
+      }, exe);
+    // the callback gets a stopped file at once, but the batch waits until its aborted upload is done before it logs out
+    return work.handle((_, _) -> null).thenCombine(result, (_, it) -> it);
+  }
+
+  /**
+   * Downscale the image with the {@link ImageResizer} in its own pool, the uploads of other files go on meanwhile
+   *
+   * @return A future for the downscaled image, empty if the file is uploaded as it is. It does not fail.
+   */
+  private CompletableFuture<Optional<ByteBuffer>> resize(Path cur, CompletableFuture<String> urlFuture,
+                                                         @Nullable Executor resizeExe) {
+    final ImageResizer resizer = imageResizer;
+    if (resizer == null || resizeExe == null) {
+      return CompletableFuture.completedFuture(Optional.empty());
+    }
+    return CompletableFuture.supplyAsync(() -> {
+      if (urlFuture.isDone()) {
+        // stopped or out of time while waiting for the pool
+        return Optional.empty();
       }
-    } catch (UploadException | IOException e) {
-      Logger.log(Level.ERROR, "Exception in GUI", e);
-    } finally {
-      if (!con.logout()) {
-        Logger.log(Level.ERROR, "The logout failed, the user may still be logged in");
+      try {
+        final Optional<ByteBuffer> resized = resizer.resize(cur);
+        resized.ifPresent(it -> Logger.log(Level.DEBUG, () -> "Downscaled " + cur.getFileName() + " to " + it.remaining() + " bytes"));
+        return resized;
+      } catch (IOException | RuntimeException e) {
+        Logger.log(Level.WARN, "Could not downscale " + cur + ", uploading it as it is", e);
+        return Optional.empty();
       }
-      con.disconnect();
+    }, resizeExe);
+  }
+
+  private CompletableFuture<String> sendFile(UploadConnection con, Path cur, Optional<ByteBuffer> content,
+                                             CompletableFuture<String> urlFuture, ProgressTracker progress) {
+    if (urlFuture.isDone()) {
+      // stopped or out of time while waiting for its turn
+      return urlFuture;
     }
-    return buffer.toString();
+    Logger.log(Level.DEBUG, () -> "Starting upload for file " + cur);
+    final CompletableFuture<String> upload = content
+      .map(it -> con.uploadAsync(cur, it, progress.listenerFor(cur, it.remaining())))
+      .orElseGet(() -> con.uploadAsync(cur, progress.listenerFor(cur)));
+    if (fileDeadline == null) {
+      final long size = content.map(it -> (long) it.remaining()).orElseGet(() -> sizeOf(cur));
+      upload.orTimeout(fileTimeout(size).toMillis(), TimeUnit.MILLISECONDS);
+    }
+    // failing the upload aborts its request
+    urlFuture.whenComplete((_, e) -> {
+      if (e != null) {
+        upload.completeExceptionally(e);
+      }
+    });
+    return upload
+      .whenComplete((url, e) -> {
+        if (e == null) {
+          recordUpload(cur, url);
+        }
+      });
   }
 
+  /** Get the URL of the file if it was already uploaded according to the journal or the cache */
+  private Optional<String> lookupKnownUrl(Path file) {
+    try {
+      final String settings = uploadSettings();
+      Optional<String> url = journal != null ? journal.lookup(file, settings) : Optional.empty();
+      if (url.isEmpty() && cache != null) {
+        url = cache.lookup(file, settings);
+      }
+      url.ifPresent(it -> Logger.log(Level.INFO, () -> "Skipping " + file.getFileName() + ", it was already uploaded to " + it));
+      return url;
+    } catch (IOException e) {
+      Logger.log(Level.WARN, "Could not check if " + file + " was already uploaded", e);
+      return Optional.empty();
+    }
+  }
+
+  private void recordUpload(Path file, String url) {
+    try {
+      final String settings = uploadSettings();
+      if (journal != null) {
+        journal.record(file, settings, url);
+      }
+      if (cache != null) {
+        cache.record(file, settings, url);
+      }
+    } catch (IOException e) {
+      Logger.log(Level.WARN, "Could not record the upload of " + file, e);
+    }
+  }
+
+  /**
+   * The settings that change the content of the uploads, a file is only known as uploaded with the same
+   * settings. They are used even if a file is not downscaled because it is small enough, which only costs
+   * an upload of a file that was uploaded as it is before.
+   */
+  private String uploadSettings() {
+    final StringBuilder settings = new StringBuilder();
+    if (imageResizer != null) {
+      settings.append(imageResizer.settings());
+    }
+    if (segmentFilter != null) {
+      settings.append(settings.isEmpty() ? "" : ";").append(segmentFilter.settings());
+    }
+    return settings.toString();
+  }
+
+  /**
+   * The time for all attempts to upload a file of {@code size} bytes including the delays between them. With
+   * a byte rate every attempt gets the time to send the file while all parallel uploads share the rate.
+   */
+  private Duration fileTimeout(long size) {
+    final int attempts = retryPolicy.maxAttempts();
+    final Duration sendTime = rateLimiter != null ? rateLimiter.sendTime(size * parallelUploads) : Duration.ZERO;
+    return ATTEMPT_TIMEOUT.plus(sendTime).multipliedBy(attempts).plus(retryPolicy.maxDelay().multipliedBy(attempts - 1));
+  }
+
+  /** The size of the file, 0 if it cannot be read (the upload will fail anyway and report the problem) */
+  static long sizeOf(Path file) {
+    try {
+      return Files.size(file);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /** A login that is used for one or more chunks */
+  private final class Session {
+    private final UploadConnection con;
+    private final CompletableFuture<Throwable> stop;
+    private final AtomicBoolean loginStarted = new AtomicBoolean(false);
+    private CompletableFuture<Void> loggedIn = CompletableFuture.completedFuture(null);
+    private CompletableFuture<?> lastChunk = CompletableFuture.completedFuture(null);
+
+    Session(UploadConnection con, CompletableFuture<Throwable> stop) {
+      this.con = con;
+      this.stop = stop;
+    }
+
+    /** Log in after {@code previous} completed successfully */
+    void login(CompletableFuture<?> previous) {
+      loggedIn = previous.thenCompose(_ -> {
+        final Throwable stopped = stop.getNow(null);
+        if (stopped != null) {
+          return CompletableFuture.failedFuture(stopped);
+        }
+        loginStarted.set(true);
+        return con.loginAsync(username, password);
+      }).thenAccept(loginStatus -> {
+        if (loginStatus != LoginStatus.LOGGED_IN) {
+          throw new CompletionException(new UploadException("Failed to login user " + username + ": " + loginStatus));
+        }
+      });
+    }
+
+    CompletableFuture<Void> logoutAfterLastChunk() {
+      return lastChunk
+        .handle((_, _) -> null)
+        .thenCompose(_ -> loginStarted.get() && !keepsLogin() ? con.logoutAsync() : CompletableFuture.completedFuture(true))
+        .thenAccept(loggedOut -> {
+          if (!loggedOut) {
+            Logger.log(Level.ERROR, "The logout failed, the user may still be logged in");
+          }
+          con.disconnect();
+        });
+    }
+  }
+
+  /** The order in which the files of a batch are uploaded, the results are always in the order of the file list */
+  public enum SchedulingPolicy {
+    /** In the order of the file list */
+    FIFO,
+    /** The smallest files first, which gives the earliest results on average */
+    SHORTEST_FIRST,
+    /** The largest files first, so the batch does not wait for a large file that was started last */
+    LARGEST_FIRST;
+
+    /** The indexes of the files in the order of the upload */
+    List<Integer> order(List<Path> files) {
+      final List<Integer> order = new ArrayList<>(IntStream.range(0, files.size()).boxed().toList());
+      if (this == FIFO) {
+        return order;
+      }
+      final long[] sizes = files.stream().mapToLong(UploadBatch::sizeOf).toArray();
+      final Comparator<Integer> bySize = Comparator.comparingLong(i -> sizes[i]);
+      order.sort(this == SHORTEST_FIRST ? bySize : bySize.reversed());
+      return order;
+    }
+  }
+
+  /** Callbacks for the progress of a batch, the methods may be called concurrently from different threads */
   public interface UploadBatchCallback {
+    /** A callback that ignores the results, e.g. for {@link #logoutAsync()} */
+    UploadBatchCallback NONE = new UploadBatchCallback() {
+      @Override
+      public void uploaded(Path uploaded, String url) {
+      }
+
+      @Override
+      public void failed(Path uploaded, Throwable cause) {
+      }
+    };
+
     /**
-     * Called if a file was uploaded
+     * Called as soon as a file was uploaded
      *
      * @param uploaded The file that was uploaded
+     * @param url The URL of the uploaded file
      */
-    void uploaded(Path uploaded);
+    void uploaded(Path uploaded, String url);
 
     /**
-     * Called if a file-upload failed
+     * Called as soon as a file-upload failed
      *
      * @param uploaded The file that was <b>not</b> uploaded
+     * @param cause The reason of the failure
      */
-    void failed(Path uploaded);
-  }
+    void failed(Path uploaded, Throwable cause);
 
-  private record UploadFuture(Path path, Future<String> future) {
+    /**
+     * Called while the files are sent, a few times per second at most, and once more when the batch is done
+     *
+     * @param progress The bytes sent so far, the throughput and the estimated remaining time
+     */
+    default void progress(UploadProgress progress) {
+    }
   }
 }
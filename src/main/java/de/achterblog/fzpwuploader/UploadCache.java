@@ -0,0 +1,172 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.achterblog.util.AppendOnlyFile;
+import de.achterblog.util.log.Level;
+import de.achterblog.util.log.Logger;
+
+/**
+ * A persistent index from the content of a file (its SHA-256 hash) to the URL it was uploaded to,
+ * so the same image is not uploaded twice, even if it was copied or renamed.
+ * <p>
+ * The hash of a file is only calculated again if its path, size or modification time changed since
+ * it was hashed the last time.
+ * <p>
+ * Every URL is stored with the settings that changed the content of the upload (downscaling, removed
+ * metadata), a file is only found with the same settings. Otherwise a downscaled upload would be
+ * returned for the file in full size.
+ *
+ * @author boris
+ */
+public final class UploadCache implements Closeable {
+  private static final Duration FORCE_INTERVAL = Duration.ofSeconds(5);
+  private static final HexFormat HEX_FORMAT = HexFormat.of();
+
+  private final Map<Key, String> urlsByKey = new ConcurrentHashMap<>();
+  private final Map<Path, FileState> hashedFiles = new ConcurrentHashMap<>();
+  private final AppendOnlyFile file;
+
+  private UploadCache(Path cacheFile) throws IOException {
+    this.file = AppendOnlyFile.open(cacheFile, FORCE_INTERVAL, this::parse);
+  }
+
+  /** Open the cache in this file, it is created if it does not exist yet */
+  public static UploadCache open(Path cacheFile) throws IOException {
+    return new UploadCache(cacheFile);
+  }
+
+  /**
+   * Look up the URL of a file with the same content that was already uploaded as it is
+   *
+   * @return The URL if a file with the same content was uploaded
+   */
+  public Optional<String> lookup(Path file) throws IOException {
+    return lookup(file, "");
+  }
+
+  /**
+   * Look up the URL of a file with the same content that was already uploaded with the same settings
+   *
+   * @param settings The settings that changed the content of the upload, empty if it was uploaded as it is
+   * @return The URL if a file with the same content was uploaded with these settings
+   */
+  public Optional<String> lookup(Path file, String settings) throws IOException {
+    return Optional.ofNullable(urlsByKey.get(new Key(hash(file).hash(), settings)));
+  }
+
+  /** Add the URL of a file that was uploaded as it is to the cache */
+  public void record(Path file, String url) throws IOException {
+    record(file, "", url);
+  }
+
+  /**
+   * Add the URL of an uploaded file to the cache
+   *
+   * @param settings The settings that changed the content of the upload, empty if it was uploaded as it is
+   */
+  public void record(Path file, String settings, String url) throws IOException {
+    if (!FZPWUploadConnection.UPLOAD_FILE_NAME_PATTERN.matcher(url).matches()) {
+      Logger.log(Level.DEBUG, () -> "Not caching unexpected URL " + url);
+      return;
+    }
+    final FileState state = hash(file);
+    if (url.equals(urlsByKey.put(new Key(state.hash(), settings), url))) {
+      return;
+    }
+    // the settings are left out for an upload as it is, so the line is the same as before there were any
+    this.file.append(state.hash() + "\t" + state.size() + "\t" + state.lastModified() + "\t" + url + "\t"
+                       + URLEncoder.encode(state.path().toString(), StandardCharsets.UTF_8)
+                       + (settings.isEmpty() ? "" : "\t" + URLEncoder.encode(settings, StandardCharsets.UTF_8)));
+  }
+
+  private FileState hash(Path file) throws IOException {
+    final Path path = file.toAbsolutePath();
+    final var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    final long size = attributes.size();
+    final long lastModified = attributes.lastModifiedTime().toMillis();
+    final FileState known = hashedFiles.get(path);
+    if (known != null && known.size() == size && known.lastModified() == lastModified) {
+      return known;
+    }
+
+    final MessageDigest digest = newDigest();
+    try (InputStream in = Files.newInputStream(path)) {
+      final byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    final var state = new FileState(path, size, lastModified, HEX_FORMAT.formatHex(digest.digest()));
+    hashedFiles.put(path, state);
+    return state;
+  }
+
+  private void parse(String line) {
+    final String[] fields = line.split("\t");
+    try {
+      if (fields.length < 5 || fields.length > 6 || !FZPWUploadConnection.UPLOAD_FILE_NAME_PATTERN.matcher(fields[3]).matches()) {
+        throw new IllegalArgumentException("Unexpected format");
+      }
+      final Path path = Path.of(URLDecoder.decode(fields[4], StandardCharsets.UTF_8));
+      hashedFiles.put(path, new FileState(path, Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+      final String settings = fields.length == 6 ? URLDecoder.decode(fields[5], StandardCharsets.UTF_8) : "";
+      urlsByKey.put(new Key(fields[0], settings), fields[3]);
+    } catch (IllegalArgumentException e) {
+      Logger.log(Level.WARN, () -> "Ignoring invalid entry of the upload cache: " + line);
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 must be supported by every JVM", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private record FileState(Path path, long size, long lastModified, String hash) {
+  }
+
+  private record Key(String hash, String settings) {
+  }
+}
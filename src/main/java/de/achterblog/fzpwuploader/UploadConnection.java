@@ -20,10 +20,18 @@ package de.achterblog.fzpwuploader;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.LongConsumer;
 
 /**
  * Basic interface for classes that upload a file to a login-secured place
+ * <p>
+ * Implementations provide the asynchronous methods, the blocking variants wait for their results.
  *
  * @author boris
  */
@@ -50,7 +58,17 @@ public interface UploadConnection {
    * @throws IOException Can be forwarded if it occurs within the login-process
    * @throws IllegalStateException If the connection is already logged in
    */
-  LoginStatus login(String user, String password) throws UploadException, IOException, IllegalStateException;
+  default LoginStatus login(String user, String password) throws UploadException, IOException, IllegalStateException {
+    return await(loginAsync(user, password));
+  }
+
+  /**
+   * Asynchronous variant of {@link #login(String, String) login}
+   *
+   * @return A future for the status of the login that fails with the exceptions of the blocking variant
+   * @throws IllegalStateException If the connection is already logged in
+   */
+  CompletableFuture<LoginStatus> loginAsync(String user, String password) throws IllegalStateException;
 
   /**
    * Upload this file
@@ -62,7 +80,40 @@ public interface UploadConnection {
    * @throws IllegalStateException If the user was not logged in
    * @throws IOException Can be forwarded if it occurs within the upload
    */
-  String upload(Path file) throws FileNotFoundException, UploadException, IOException, IllegalStateException;
+  default String upload(Path file) throws FileNotFoundException, UploadException, IOException, IllegalStateException {
+    return await(uploadAsync(file));
+  }
+
+  /**
+   * Asynchronous variant of {@link #upload(Path) upload}
+   *
+   * @return A future for the URL of the uploaded file that fails with the exceptions of the blocking variant
+   */
+  CompletableFuture<String> uploadAsync(Path file);
+
+  /**
+   * Asynchronous variant of {@link #upload(Path) upload} that reports the progress
+   *
+   * @param bytesSent Gets the number of bytes of the request that were sent so far, it starts again at 0
+   *                  if the request is sent again. Connections that cannot report it just upload the file.
+   * @return A future for the URL of the uploaded file that fails with the exceptions of the blocking variant
+   */
+  default CompletableFuture<String> uploadAsync(Path file, LongConsumer bytesSent) {
+    return uploadAsync(file);
+  }
+
+  /**
+   * Upload the content instead of the content of the file, e.g. an image that was downscaled before.
+   * The upload gets the name of the file.
+   *
+   * @param content The content to upload (the remaining bytes of the buffer), it must not change until the upload is done
+   * @param bytesSent See {@link #uploadAsync(Path, LongConsumer)}
+   * @return A future for the URL of the uploaded file that fails with the exceptions of the blocking variant.
+   *         Connections that cannot upload other content upload the file itself.
+   */
+  default CompletableFuture<String> uploadAsync(Path file, ByteBuffer content, LongConsumer bytesSent) {
+    return uploadAsync(file, bytesSent);
+  }
 
   /**
    * Logout from the server.
@@ -73,11 +124,44 @@ public interface UploadConnection {
    * @return {@code true} if successful, {@code false} if an error happened (aside from an
    *         Exception, e.g. the answer was not unknown to the implementation)
    */
-  boolean logout();
+  default boolean logout() {
+    return logoutAsync().join();
+  }
+
+  /**
+   * Asynchronous variant of {@link #logout() logout}
+   *
+   * @return A future for the result of the logout that never fails
+   */
+  CompletableFuture<Boolean> logoutAsync();
 
   /** Completely disconnect from the server. May close connections, wipe login-data etc. */
   void disconnect();
 
   /** Return the current LoginStatus of this connection */
   LoginStatus getLoginStatus();
+
+  private static <T> T await(CompletableFuture<T> future) throws UploadException, IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof UploadException uploadException) {
+        throw uploadException;
+      } else if (cause instanceof IOException ioException) {
+        throw ioException;
+      } else if (cause instanceof UncheckedIOException uncheckedIOException) {
+        throw uncheckedIOException.getCause();
+      } else if (cause instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      } else if (cause instanceof Error error) {
+        throw error;
+      }
+      throw new UploadException(e.getMessage(), e);
+    }
+  }
 }
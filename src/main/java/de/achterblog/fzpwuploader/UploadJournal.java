@@ -0,0 +1,150 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.achterblog.util.AppendOnlyFile;
+import de.achterblog.util.log.Level;
+import de.achterblog.util.log.Logger;
+
+/**
+ * An append-only file that records every uploaded file with its size, modification time and URL as
+ * soon as the upload is done. A batch that uses the journal skips all files that are already in it,
+ * so an interrupted batch can simply be started again.
+ * <p>
+ * Every file is recorded with the settings that changed the content of the upload (downscaling, removed
+ * metadata), it is only skipped if it is uploaded with the same settings again.
+ * <p>
+ * See {@link AppendOnlyFile} for the durability of the entries.
+ *
+ * @author boris
+ */
+public final class UploadJournal implements Closeable {
+  private static final Duration DEFAULT_FORCE_INTERVAL = Duration.ofSeconds(1);
+
+  private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+  private final AppendOnlyFile file;
+
+  private UploadJournal(Path journalFile, Duration forceInterval) throws IOException {
+    this.file = AppendOnlyFile.open(journalFile, forceInterval, line -> Entry.parse(line).ifPresent(it -> entries.put(it.key(), it)));
+  }
+
+  /** Open the journal in this file, it is created if it does not exist yet */
+  public static UploadJournal open(Path journalFile) throws IOException {
+    return open(journalFile, DEFAULT_FORCE_INTERVAL);
+  }
+
+  static UploadJournal open(Path journalFile, Duration forceInterval) throws IOException {
+    return new UploadJournal(journalFile, forceInterval);
+  }
+
+  /**
+   * Look up the URL of a file that was already uploaded as it is
+   *
+   * @return The URL if the file is in the journal with the same size and modification time
+   */
+  public Optional<String> lookup(Path file) throws IOException {
+    return lookup(file, "");
+  }
+
+  /**
+   * Look up the URL of a file that was already uploaded with the same settings
+   *
+   * @param settings The settings that changed the content of the upload, empty if it was uploaded as it is
+   * @return The URL if the file is in the journal with the same size, modification time and settings
+   */
+  public Optional<String> lookup(Path file, String settings) throws IOException {
+    final Entry entry = entries.get(new Key(file.toAbsolutePath(), settings));
+    if (entry == null) {
+      return Optional.empty();
+    }
+    final var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    if (attributes.size() != entry.size() || attributes.lastModifiedTime().toMillis() != entry.lastModified()) {
+      return Optional.empty();
+    }
+    return Optional.of(entry.url());
+  }
+
+  /** Append a file that was successfully uploaded as it is to the journal */
+  public void record(Path file, String url) throws IOException {
+    record(file, "", url);
+  }
+
+  /**
+   * Append a successfully uploaded file to the journal
+   *
+   * @param settings The settings that changed the content of the upload, empty if it was uploaded as it is
+   */
+  public void record(Path file, String settings, String url) throws IOException {
+    final var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    final var entry = new Entry(file.toAbsolutePath(), attributes.size(), attributes.lastModifiedTime().toMillis(), url, settings);
+    entries.put(entry.key(), entry);
+    this.file.append(entry.format());
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private record Key(Path file, String settings) {
+  }
+
+  /**
+   * A line in the journal: size, modification time, URL, the (URL-encoded) path and the (URL-encoded)
+   * settings separated by tabs. The settings are left out for an upload as it is.
+   */
+  private record Entry(Path file, long size, long lastModified, String url, String settings) {
+    Key key() {
+      return new Key(file, settings);
+    }
+
+    String format() {
+      return size + "\t" + lastModified + "\t" + url + "\t" + URLEncoder.encode(file.toString(), StandardCharsets.UTF_8)
+             + (settings.isEmpty() ? "" : "\t" + URLEncoder.encode(settings, StandardCharsets.UTF_8));
+    }
+
+    static Optional<Entry> parse(String line) {
+      final String[] fields = line.split("\t");
+      if (fields.length < 4 || fields.length > 5) {
+        return Optional.empty();
+      }
+      try {
+        final String settings = fields.length == 5 ? URLDecoder.decode(fields[4], StandardCharsets.UTF_8) : "";
+        return Optional.of(new Entry(Path.of(URLDecoder.decode(fields[3], StandardCharsets.UTF_8)),
+                                     Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], settings));
+      } catch (IllegalArgumentException e) {
+        Logger.log(Level.WARN, () -> "Ignoring invalid entry of the journal: " + line);
+        return Optional.empty();
+      }
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * A snapshot of the progress of a running {@link UploadBatch}, see {@link UploadBatch.UploadBatchCallback#progress}
+ *
+ * @param files The files that are being uploaded right now
+ * @param sentBytes The bytes of the batch that are done, files that were skipped or failed count as done
+ * @param totalBytes The size of all files of the batch
+ * @param bytesPerSecond The average throughput since the first byte was sent, 0 if nothing was sent yet
+ * @author boris
+ */
+public record UploadProgress(List<FileProgress> files, long sentBytes, long totalBytes, double bytesPerSecond) {
+  public UploadProgress {
+    files = List.copyOf(files);
+  }
+
+  /** The part of the batch that is done, between 0 and 1 */
+  public double fraction() {
+    return totalBytes > 0 ? Math.min(1.0, (double) sentBytes / totalBytes) : 1.0;
+  }
+
+  /** The estimated time until all bytes are sent, empty as long as the throughput is unknown */
+  public Optional<Duration> remaining() {
+    if (bytesPerSecond <= 0) {
+      return Optional.empty();
+    }
+    return Optional.of(Duration.ofMillis((long) (Math.max(0, totalBytes - sentBytes) * 1000 / bytesPerSecond)));
+  }
+
+  /** The text for a progress bar, e.g. "42% of 12.3 MB, 1.1 MB/s, 6s left" */
+  public String toText() {
+    final var text = new StringBuilder()
+      .append(Math.round(fraction() * 100)).append("% of ").append(formatBytes(totalBytes));
+    if (bytesPerSecond > 0) {
+      text.append(", ").append(formatBytes((long) bytesPerSecond)).append("/s");
+    }
+    remaining().ifPresent(it -> text.append(", ").append(it.toSeconds()).append("s left"));
+    return text.toString();
+  }
+
+  private static String formatBytes(long bytes) {
+    if (bytes < 1024) {
+      return bytes + " B";
+    }
+    if (bytes < 1024 * 1024) {
+      return String.format(Locale.ROOT, "%.1f kB", bytes / 1024.0);
+    }
+    return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+  }
+
+  /** The progress of a single file, the bytes of the request headers are not counted */
+  public record FileProgress(Path file, long sentBytes, long totalBytes) {
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader;
+
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
+
+import org.jspecify.annotations.Nullable;
+
+/**
+ * The result of the upload of a single file: either the URL of the file on the server or the
+ * reason why the upload failed.
+ *
+ * @author boris
+ */
+public record UploadResult(Path file, @Nullable String url, @Nullable Throwable error) {
+  public UploadResult {
+    if ((url == null) == (error == null)) {
+      throw new IllegalArgumentException("Exactly one of url and error must be set");
+    }
+  }
+
+  public static UploadResult success(Path file, String url) {
+    return new UploadResult(file, url, null);
+  }
+
+  public static UploadResult failure(Path file, Throwable error) {
+    final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    return new UploadResult(file, null, cause);
+  }
+
+  public boolean isSuccess() {
+    return url != null;
+  }
+
+  /** The text for the output of a batch: the URL and the filename or an error message */
+  public String toText() {
+    if (url != null) {
+      return url + '\n' + file.getFileName() + "\n\n";
+    }
+    final Throwable e = Objects.requireNonNull(error);
+    return "Failed to upload file " + file.getFileName() + " (" + e.getClass().getSimpleName() + ": " + e.getMessage() + ")\n\n";
+  }
+}
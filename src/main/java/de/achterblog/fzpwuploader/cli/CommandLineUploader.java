@@ -0,0 +1,380 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.fzpwuploader.cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import de.achterblog.fzpwuploader.Cancellation;
+import de.achterblog.fzpwuploader.DataFiles;
+import de.achterblog.fzpwuploader.HotFolder;
+import de.achterblog.fzpwuploader.ImageResizer;
+import de.achterblog.fzpwuploader.RateLimiter;
+import de.achterblog.fzpwuploader.SessionStore;
+import de.achterblog.fzpwuploader.UploadBatch;
+import de.achterblog.fzpwuploader.UploadBatch.SchedulingPolicy;
+import de.achterblog.fzpwuploader.UploadBatch.UploadBatchCallback;
+import de.achterblog.fzpwuploader.UploadCache;
+import de.achterblog.fzpwuploader.UploadJournal;
+import de.achterblog.fzpwuploader.UploadResult;
+import de.achterblog.util.AdaptiveLimiter;
+import de.achterblog.util.JpegSegmentFilter;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Uploads files without a user interface, e.g. from shell scripts.
+ * <p>
+ * The arguments are files or glob patterns (like {@code "photos/*.jpg"}), the user and password are
+ * taken from the environment variables {@value #USER_VARIABLE} and {@value #PASSWORD_VARIABLE}, the
+ * missing ones are read from the standard input (one per line). Every uploaded file is printed as
+ * {@code file<TAB>url} to the standard output as soon as it is done, failures are printed to the
+ * standard error. The exit code is 0 if all files were uploaded, 1 if some failed and 2 if nothing
+ * could be uploaded at all.
+ * <p>
+ * With {@code --watch} the arguments are folders that are watched by a {@link HotFolder} until the
+ * process is stopped.
+ * <p>
+ * Stopping the process (e.g. with Ctrl+C) cancels the running uploads, but still logs out (or keeps
+ * the login) before it exits.
+ * <p>
+ * With {@code --max-edge} larger images are downscaled before the upload (see {@link ImageResizer}),
+ * {@code --strip-metadata} removes EXIF data, thumbnails and the like (see {@link JpegSegmentFilter}).
+ * <p>
+ * Nothing of {@code java.desktop} is used unless images are downscaled, so this runs on headless machines
+ * and starts quickly.
+ * Unless {@code --no-session} is given, the login is kept between the runs (see {@link SessionStore}),
+ * so consecutive calls do not need to log in again.
+ *
+ * @author boris
+ */
+public final class CommandLineUploader implements UploadBatchCallback {
+  static final String USER_VARIABLE = "FZPW_USER";
+  static final String PASSWORD_VARIABLE = "FZPW_PASSWORD";
+  private static final String LOG_LEVEL_PROPERTY = "de.achterblog.log.level";
+  private static final int EXIT_FAILED_FILES = 1;
+  private static final int EXIT_ERROR = 2;
+  private static final int DEFAULT_QUALITY_PERCENT = Math.round(ImageResizer.DEFAULT_QUALITY * 100);
+  private static final String USAGE = """
+    Usage: CommandLineUploader [options] <file or glob>...
+      --parallel=N             upload N files at the same time (default %d)
+      --order=POLICY           fifo, shortest-first or largest-first (the output is always in the given order)
+      --adaptive               adapt the number of parallel uploads to the load of the server, up to --parallel
+      --requests-per-second=N  send at most N requests per second
+      --bytes-per-second=N     upload at most N bytes per second
+      --timeout=SECONDS        stop the uploads that are not done after this time
+      --file-timeout=SECONDS   every file must be uploaded within this time after the start
+      --max-edge=PIXELS        downscale larger images to this size before the upload (%d is about the forum size)
+      --quality=PERCENT        the JPEG quality of the downscaled images (default %d)
+      --strip-metadata         remove EXIF data, thumbnails, comments etc. from the uploaded JPEGs
+      --no-session             log in and out for this run instead of keeping the login
+      --logout                 log out the kept login and exit
+      --watch                  the arguments are folders, upload every image put into them until stopped
+      --help                   show this text
+    The user and password are taken from %s and %s or read from the standard input.
+    """.formatted(UploadBatch.DEFAULT_PARALLEL_UPLOADS, ImageResizer.DEFAULT_MAX_EDGE, DEFAULT_QUALITY_PERCENT, USER_VARIABLE,
+                  PASSWORD_VARIABLE);
+
+  private final PrintStream out;
+  private final PrintStream err;
+  private final AtomicInteger failures = new AtomicInteger(0);
+
+  CommandLineUploader(PrintStream out, PrintStream err) {
+    this.out = out;
+    this.err = err;
+  }
+
+  static void main(String[] args) {
+    // the standard output is for the URLs, so only warnings (on the standard error) are logged by default
+    if (System.getProperty(LOG_LEVEL_PROPERTY) == null) {
+      System.setProperty(LOG_LEVEL_PROPERTY, "WARN");
+    }
+    final var stdin = new BufferedReader(new InputStreamReader(System.in));
+    System.exit(new CommandLineUploader(System.out, System.err).run(args, System.getenv(), stdin));
+  }
+
+  int run(String[] args, Map<String, String> env, BufferedReader stdin) {
+    try {
+      final Options options = Options.parse(args);
+      if (options.help()) {
+        out.print(USAGE);
+        return 0;
+      }
+      final Credentials credentials = Credentials.read(env, stdin);
+      UploadBatch batch = new UploadBatch(credentials.user(), credentials.password(), this).withParallelUploads(options.parallelUploads())
+        .withSchedulingPolicy(options.schedulingPolicy());
+      if (options.adaptive()) {
+        batch = batch.withAdaptiveLimiter(new AdaptiveLimiter(Math.min(2, options.parallelUploads()), options.parallelUploads()));
+      }
+      if (options.requestsPerSecond() > 0 || options.bytesPerSecond() > 0) {
+        batch = batch.withRateLimiter(new RateLimiter(options.requestsPerSecond(), options.bytesPerSecond()));
+      }
+      if (options.timeoutSeconds() > 0) {
+        batch = batch.withBatchTimeout(Duration.ofSeconds(options.timeoutSeconds()));
+      }
+      if (options.fileTimeoutSeconds() > 0) {
+        batch = batch.withFileDeadline(Duration.ofSeconds(options.fileTimeoutSeconds()));
+      }
+      if (options.maxEdge() > 0) {
+        batch = batch.withImageResizer(new ImageResizer(options.maxEdge(), options.qualityPercent() / 100f));
+      }
+      if (options.stripMetadata()) {
+        batch = batch.withSegmentFilter(JpegSegmentFilter.METADATA);
+      }
+      if (options.keepSession()) {
+        batch = batch.withSessionStore(new SessionStore(DataFiles.SESSION_FILE));
+      }
+      if (options.logout()) {
+        return batch.logoutAsync().join() ? 0 : EXIT_ERROR;
+      }
+      final var cancellation = new Cancellation();
+      final var stopped = new CountDownLatch(1);
+      // cancel the uploads when the JVM is stopped, but let the batch log out before it exits
+      final Thread shutdownHook = new Thread(() -> {
+        cancellation.cancel();
+        try {
+          stopped.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+      try (UploadJournal journal = UploadJournal.open(DataFiles.JOURNAL_FILE);
+           UploadCache cache = UploadCache.open(DataFiles.CACHE_FILE)) {
+        batch = batch.withJournal(journal).withCache(cache).withCancellation(cancellation);
+        if (options.watch()) {
+          watch(batch, options.arguments());
+          return 0;
+        }
+        final List<Path> files = expand(options.arguments());
+        if (files.isEmpty()) {
+          err.println("No files to upload");
+          return EXIT_ERROR;
+        }
+        batch.uploadResultsAsync(files).join();
+      } finally {
+        stopped.countDown();
+        removeShutdownHook(shutdownHook);
+      }
+      return failures.get() > 0 ? EXIT_FAILED_FILES : 0;
+    } catch (IllegalArgumentException e) {
+      err.println(e.getMessage());
+      err.print(USAGE);
+      return EXIT_ERROR;
+    } catch (CompletionException e) {
+      err.println(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+      return EXIT_ERROR;
+    } catch (IOException e) {
+      err.println(e);
+      return EXIT_ERROR;
+    }
+  }
+
+  /** Upload the images put into the folders until the {@link Cancellation} of the batch, e.g. when the JVM is stopped */
+  private void watch(UploadBatch batch, List<String> folders) throws IOException {
+    if (folders.isEmpty()) {
+      throw new IllegalArgumentException("No folder to watch");
+    }
+    HotFolder.watch(batch, folders.stream().map(Path::of).toList()).run();
+  }
+
+  private static void removeShutdownHook(Thread shutdownHook) {
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException _) {
+      // the JVM is already shutting down, the hook is running
+    }
+  }
+
+  @Override
+  public void uploaded(Path uploaded, String url) {
+    out.println(uploaded + "\t" + url);
+    out.flush();
+  }
+
+  @Override
+  public void failed(Path uploaded, Throwable cause) {
+    failures.incrementAndGet();
+    err.println(UploadResult.failure(uploaded, cause).toText().strip());
+  }
+
+  /** Replace the glob patterns in the arguments by the files they match, other arguments are used as they are */
+  List<Path> expand(List<String> arguments) throws IOException {
+    final List<Path> files = new ArrayList<>();
+    for (String argument : arguments) {
+      if (firstGlobCharacter(argument) < 0) {
+        files.add(Path.of(argument));
+        continue;
+      }
+      final List<Path> matches = glob(argument);
+      if (matches.isEmpty()) {
+        err.println("No file matches " + argument);
+      }
+      files.addAll(matches);
+    }
+    return files;
+  }
+
+  /** The files matching the pattern, the directory before the first segment with a glob character is searched */
+  private static List<Path> glob(String pattern) throws IOException {
+    final int separator = pattern.lastIndexOf('/', firstGlobCharacter(pattern));
+    final Path start = separator < 0 ? Path.of(".") : Path.of(pattern.substring(0, separator + 1));
+    if (!Files.isDirectory(start)) {
+      return List.of();
+    }
+    final String relativePattern = pattern.substring(separator + 1);
+    final PathMatcher matcher = start.getFileSystem().getPathMatcher("glob:" + relativePattern);
+    final int depth = relativePattern.contains("**") ? Integer.MAX_VALUE : relativePattern.split("/").length;
+    try (Stream<Path> paths = Files.walk(start, depth)) {
+      return paths
+        .filter(it -> matcher.matches(start.relativize(it)))
+        .map(it -> separator < 0 ? start.relativize(it) : it)
+        .filter(Files::isRegularFile)
+        .sorted()
+        .toList();
+    }
+  }
+
+  private static int firstGlobCharacter(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if ("*?[{".indexOf(s.charAt(i)) >= 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  record Options(List<String> arguments, int parallelUploads, SchedulingPolicy schedulingPolicy, boolean adaptive, int requestsPerSecond,
+                 long bytesPerSecond, int timeoutSeconds, int fileTimeoutSeconds, int maxEdge, int qualityPercent, boolean stripMetadata,
+                 boolean keepSession, boolean logout, boolean watch, boolean help) {
+    static Options parse(String[] args) {
+      final List<String> arguments = new ArrayList<>();
+      int parallelUploads = UploadBatch.DEFAULT_PARALLEL_UPLOADS;
+      SchedulingPolicy schedulingPolicy = SchedulingPolicy.FIFO;
+      boolean adaptive = false;
+      int requestsPerSecond = 0;
+      long bytesPerSecond = 0;
+      int timeoutSeconds = 0;
+      int fileTimeoutSeconds = 0;
+      int maxEdge = 0;
+      int qualityPercent = DEFAULT_QUALITY_PERCENT;
+      boolean stripMetadata = false;
+      boolean keepSession = true;
+      boolean logout = false;
+      boolean watch = false;
+      boolean help = false;
+      boolean optionsDone = false;
+      for (String arg : args) {
+        if (optionsDone || !arg.startsWith("--")) {
+          arguments.add(arg);
+        } else if (arg.equals("--")) {
+          optionsDone = true;
+        } else if (arg.startsWith("--parallel=")) {
+          parallelUploads = parsePositive(arg.substring("--parallel=".length()));
+        } else if (arg.startsWith("--order=")) {
+          schedulingPolicy = parsePolicy(arg.substring("--order=".length()));
+        } else if (arg.startsWith("--requests-per-second=")) {
+          requestsPerSecond = parsePositive(arg.substring("--requests-per-second=".length()));
+        } else if (arg.startsWith("--bytes-per-second=")) {
+          bytesPerSecond = parsePositive(arg.substring("--bytes-per-second=".length()));
+        } else if (arg.startsWith("--timeout=")) {
+          timeoutSeconds = parsePositive(arg.substring("--timeout=".length()));
+        } else if (arg.startsWith("--file-timeout=")) {
+          fileTimeoutSeconds = parsePositive(arg.substring("--file-timeout=".length()));
+        } else if (arg.startsWith("--max-edge=")) {
+          maxEdge = parsePositive(arg.substring("--max-edge=".length()));
+        } else if (arg.startsWith("--quality=")) {
+          qualityPercent = parsePositive(arg.substring("--quality=".length()));
+          if (qualityPercent > 100) {
+            throw new IllegalArgumentException("The quality must be at most 100: " + qualityPercent);
+          }
+        } else if (arg.equals("--strip-metadata")) {
+          stripMetadata = true;
+        } else if (arg.equals("--adaptive")) {
+          adaptive = true;
+        } else if (arg.equals("--no-session")) {
+          keepSession = false;
+        } else if (arg.equals("--logout")) {
+          logout = true;
+        } else if (arg.equals("--watch")) {
+          watch = true;
+        } else if (arg.equals("--help")) {
+          help = true;
+        } else {
+          throw new IllegalArgumentException("Unknown option " + arg);
+        }
+      }
+      return new Options(arguments, parallelUploads, schedulingPolicy, adaptive, requestsPerSecond, bytesPerSecond, timeoutSeconds,
+                         fileTimeoutSeconds, maxEdge, qualityPercent, stripMetadata, keepSession, logout, watch,
+                         help);
+    }
+
+    private static SchedulingPolicy parsePolicy(String value) {
+      try {
+        return SchedulingPolicy.valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+      } catch (IllegalArgumentException _) {
+        throw new IllegalArgumentException("Unknown order: " + value);
+      }
+    }
+
+    private static int parsePositive(String value) {
+      try {
+        final int result = Integer.parseInt(value);
+        if (result > 0) {
+          return result;
+        }
+      } catch (NumberFormatException _) {
+        // the same message as for the other invalid values
+      }
+      throw new IllegalArgumentException("Not a positive number: " + value);
+    }
+  }
+
+  record Credentials(String user, String password) {
+    static Credentials read(Map<String, String> env, BufferedReader stdin) throws IOException {
+      final String user = getOrRead(env.get(USER_VARIABLE), stdin, "user", USER_VARIABLE);
+      final String password = getOrRead(env.get(PASSWORD_VARIABLE), stdin, "password", PASSWORD_VARIABLE);
+      return new Credentials(user, password);
+    }
+
+    private static String getOrRead(@Nullable String value, BufferedReader stdin, String name, String variable) throws IOException {
+      if (value != null && !value.isEmpty()) {
+        return value;
+      }
+      final String line = stdin.readLine();
+      if (line == null || line.isEmpty()) {
+        throw new IllegalArgumentException("Missing the " + name + ", set " + variable + " or pass it on the standard input");
+      }
+      return line;
+    }
+  }
+}
@@ -19,14 +19,26 @@
 package de.achterblog.fzpwuploader.ui;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.*;
 
 import de.achterblog.util.log.Level;
@@ -36,6 +48,10 @@ import org.jspecify.annotations.Nullable;
 /**
  * A JPanel that paints previews of images that are submitted via this class
  * PropertyChangeListener-methods.
+ * <p>
+ * The images are decoded and scaled on a background thread, so the file chooser does not freeze while
+ * large images are read. A decode is aborted when another file is selected, only the preview of the
+ * latest selection is shown.
  *
  * @author boris
  */
@@ -45,11 +61,23 @@ class ImagePreviewAccessory extends JPanel implements PropertyChangeListener {
   private transient volatile @Nullable Image previewImage;
   /** A flag that show if the image changed from the last-rendering */
   private final AtomicBoolean paintNeedsClear = new AtomicBoolean(true);
+  /** One thread that ends when it is not needed, so a closed file chooser does not leave it behind */
+  private final transient ExecutorService decoder;
+  /** Counts the selections, a decode is stale when this changed */
+  private final AtomicLong selection = new AtomicLong();
+  /** The reader of the running decode, to abort it when it is stale */
+  private final transient AtomicReference<@Nullable ImageReader> runningReader = new AtomicReference<>();
+  /** The decode that was submitted last, only used on the event dispatch thread */
+  private transient @Nullable Future<?> pendingDecode;
 
   ImagePreviewAccessory() {
     Dimension max = new Dimension(MAX_SIZE, MAX_SIZE);
     setPreferredSize(max);
     setMaximumSize(max);
+    final var executor = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                                                Thread.ofPlatform().name("preview-", 0).daemon().factory());
+    executor.allowCoreThreadTimeOut(true);
+    decoder = executor;
   }
 
   @Override
@@ -62,21 +90,81 @@ class ImagePreviewAccessory extends JPanel implements PropertyChangeListener {
         return;
       }
 
+      final long current = selection.incrementAndGet();
+      abortStaleDecode();
       if (imageFilename.matcher(file.getName()).find()) {
-        Image image = null;
-        try {
-          image = ImageIO.read(file);
-        } catch (IOException e) {
-          Logger.log(Level.INFO, () -> "IOException reading " + file);
-        }
-
-        previewImage = scale(image);
+        pendingDecode = decoder.submit(() -> decode(file, current));
       } else {
-        previewImage = null;
+        show(null, current);
       }
+    }
+  }
+
+  /** Drop the decode that waits for the thread and abort the running one, their selection is stale */
+  private void abortStaleDecode() {
+    final Future<?> pending = pendingDecode;
+    if (pending != null) {
+      pending.cancel(false);
+    }
+    final ImageReader reader = runningReader.get();
+    if (reader != null) {
+      reader.abort();
+    }
+  }
+
+  /** Runs on the decoder thread */
+  private void decode(File file, long current) {
+    if (selection.get() != current) {
+      return;
+    }
+    Image image = null;
+    try {
+      final BufferedImage decoded = read(file);
+      if (selection.get() != current) {
+        // aborted, there is nothing to scale
+        return;
+      }
+      image = scale(decoded);
+    } catch (IOException | RuntimeException e) {
+      Logger.log(Level.INFO, () -> "Exception reading " + file + ": " + e);
+    }
+    final Image preview = image;
+    SwingUtilities.invokeLater(() -> show(preview, current));
+  }
+
+  /** Show the preview if it is still for the latest selection, only on the event dispatch thread */
+  private void show(@Nullable Image preview, long current) {
+    if (selection.get() != current) {
+      return;
+    }
+    previewImage = preview;
+    paintNeedsClear.set(true);
+    repaint();
+  }
 
-      paintNeedsClear.set(true);
-      repaint();
+  /** Read the image, only every n-th pixel of a large image is decoded. Returns {@code null} if it is no image */
+  private @Nullable BufferedImage read(File file) throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+      if (in == null) {
+        throw new IOException("Cannot open " + file);
+      }
+      final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      final ImageReader reader = readers.next();
+      runningReader.set(reader);
+      try {
+        reader.setInput(in, true, true);
+        final int edge = Math.max(reader.getWidth(0), reader.getHeight(0));
+        final ImageReadParam param = reader.getDefaultReadParam();
+        final int subsampling = Math.max(1, edge / (2 * MAX_SIZE));
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, param);
+      } finally {
+        runningReader.set(null);
+        reader.dispose();
+      }
     }
   }
 
@@ -96,17 +184,18 @@ class ImagePreviewAccessory extends JPanel implements PropertyChangeListener {
     }
   }
 
-  private @Nullable Image scale(@Nullable Image image) {
+  /** Scale the image to the size of the preview, this is done before it is shown, not while it is painted */
+  private static @Nullable Image scale(@Nullable BufferedImage image) {
     if (image == null) {
       return null;
     }
 
-    int width = image.getWidth(this);
-    int height = image.getHeight(this);
+    int width = image.getWidth();
+    int height = image.getHeight();
     double ratio = (double) Math.max(width, height) / Math.min(width, height);
 
     // scale the sizes
-    int smallerSide = (int) (MAX_SIZE / ratio);
+    int smallerSide = Math.max(1, (int) (MAX_SIZE / ratio));
     if (width < height) {
       // upright
       height = MAX_SIZE;
@@ -119,7 +208,14 @@ class ImagePreviewAccessory extends JPanel implements PropertyChangeListener {
       width = MAX_SIZE;
     }
 
-
-    return image.getScaledInstance(width, height, Image.SCALE_FAST);
+    final var scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D graphics = scaled.createGraphics();
+    try {
+      graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+    return scaled;
   }
 }
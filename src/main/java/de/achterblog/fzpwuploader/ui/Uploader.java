@@ -22,21 +22,31 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
+import de.achterblog.fzpwuploader.Cancellation;
+import de.achterblog.fzpwuploader.DataFiles;
+import de.achterblog.fzpwuploader.ImageResizer;
+import de.achterblog.fzpwuploader.SessionStore;
 import de.achterblog.fzpwuploader.UploadBatch;
 import de.achterblog.fzpwuploader.UploadBatch.UploadBatchCallback;
+import de.achterblog.fzpwuploader.UploadCache;
+import de.achterblog.fzpwuploader.UploadJournal;
+import de.achterblog.fzpwuploader.UploadProgress;
+import de.achterblog.fzpwuploader.UploadResult;
 import de.achterblog.util.ApplicationProperties;
+import de.achterblog.util.JpegSegmentFilter;
 import de.achterblog.util.log.Level;
 import de.achterblog.util.log.Logger;
+import org.jspecify.annotations.Nullable;
 
 /**
  * UI implementation of Main window.
@@ -44,12 +54,23 @@ import de.achterblog.util.log.Logger;
  * (this was initially created with the Netbeans Form editor, but is now just this java file)
  */
 public class Uploader extends JFrame {
+  private static final SessionStore SESSION_STORE = new SessionStore(DataFiles.SESSION_FILE);
+  /** The resolution of the progress bar, it shows the sent bytes and not the number of files */
+  private static final int PROGRESS_STEPS = 1000;
+
   private final JProgressBar activityProgressBar;
+  private final JButton buttonSelect;
+  private final JButton buttonUpload;
+  private final JButton buttonCancel;
   private final JList<String> fileList = new JList<>();
   private final JProgressBar progressBar = new JProgressBar();
   private final JPasswordField textFieldPassword = new JPasswordField();
   private final JTextField textFieldUsername = new JTextField();
   private final JTextArea urlOutputArea = new JTextArea();
+  private final JCheckBoxMenuItem menuItemDownscale = new JCheckBoxMenuItem();
+  private final JCheckBoxMenuItem menuItemStripMetadata = new JCheckBoxMenuItem();
+  /** The cancellation of the running upload, only used on the event dispatch thread */
+  private @Nullable Cancellation cancellation;
 
   /** Creates new form Uploader */
   public Uploader() {
@@ -68,9 +89,12 @@ public class Uploader extends JFrame {
     final JLabel labelPassword = createLabel(textFieldPassword, "Password:");
 
     progressBar.setStringPainted(true);
+    progressBar.setMaximum(PROGRESS_STEPS);
 
-    final JButton buttonSelect = createButton("Select...", this::buttonSelectActionPerformed);
-    final JButton buttonUpload = createButton("Upload", this::buttonUploadActionPerformed);
+    buttonSelect = createButton("Select...", this::buttonSelectActionPerformed);
+    buttonUpload = createButton("Upload", this::buttonUploadActionPerformed);
+    buttonCancel = createButton("Cancel", this::buttonCancelActionPerformed);
+    buttonCancel.setEnabled(false);
 
     final var scrollPaneUrlOutput = new JScrollPane();
     urlOutputArea.setColumns(20);
@@ -104,6 +128,8 @@ public class Uploader extends JFrame {
                 .addComponent(buttonSelect)
                 .addPreferredGap(LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(buttonUpload)
+                .addPreferredGap(LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(buttonCancel)
                 .addGap(18, 18, 18)
                 .addComponent(activityProgressBar, GroupLayout.DEFAULT_SIZE, 233, Short.MAX_VALUE))
               .addComponent(progressBar, GroupLayout.DEFAULT_SIZE, 414, Short.MAX_VALUE))))
@@ -128,7 +154,8 @@ public class Uploader extends JFrame {
             .addGroup(layout.createParallelGroup(GroupLayout.Alignment.LEADING)
               .addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
                 .addComponent(buttonSelect)
-                .addComponent(buttonUpload))
+                .addComponent(buttonUpload)
+                .addComponent(buttonCancel))
               .addComponent(activityProgressBar, GroupLayout.PREFERRED_SIZE, 24, GroupLayout.PREFERRED_SIZE))
             .addGap(7, 7, 7))
           .addComponent(scrollPane, GroupLayout.DEFAULT_SIZE, 253, Short.MAX_VALUE))
@@ -161,6 +188,12 @@ public class Uploader extends JFrame {
     final var menuFile = new JMenu();
     menuFile.setText("File");
 
+    menuItemDownscale.setText("Downscale images to " + ImageResizer.DEFAULT_MAX_EDGE + " px");
+    menuFile.add(menuItemDownscale);
+    menuItemStripMetadata.setText("Remove metadata");
+    menuFile.add(menuItemStripMetadata);
+    menuFile.add(createMenuItem("Logout", this::menuLogoutActionPerformed));
+
     final var menuItemExit = createMenuItem("Exit", _ -> System.exit(0));
     menuItemExit.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Q, InputEvent.CTRL_DOWN_MASK));
     menuFile.add(menuItemExit);
@@ -183,6 +216,17 @@ public class Uploader extends JFrame {
     return menuItem;
   }
 
+  private void menuLogoutActionPerformed(ActionEvent ignoredEvt) {
+    final var username = textFieldUsername.getText();
+    final var password = new String(textFieldPassword.getPassword());
+    new UploadBatch(username, password, UploadBatchCallback.NONE).withSessionStore(SESSION_STORE).logoutAsync()
+      .whenComplete((loggedOut, e) -> {
+        if (e != null || !loggedOut) {
+          Logger.log(Level.WARN, "The logout failed, the user may still be logged in", e);
+        }
+      });
+  }
+
   private void buttonSelectActionPerformed(ActionEvent ignoredEvt) {
     final var chooser = new JFileChooser();
     final var filter = new FileNameExtensionFilter("Images", "jpg", "jpeg");
@@ -218,23 +262,36 @@ public class Uploader extends JFrame {
     final var list = (FileListModel) this.fileList.getModel();
     this.fileList.setModel(FileListModel.EMPTY_MODEL);
 
-    if (list.getSize() == 0 || list.getSize() > 20) {
-      JOptionPane.showMessageDialog(this, "Only 1-20 file are allowed", "Error", JOptionPane.ERROR_MESSAGE);
+    if (list.getSize() == 0) {
+      JOptionPane.showMessageDialog(this, "Please select the files to upload", "Error", JOptionPane.ERROR_MESSAGE);
       return;
     }
 
     progressBar.setValue(0);
-    progressBar.setMaximum(list.getSize());
-    Uploader.this.setEnabled(false);
+    progressBar.setString(null);
+    setUploading(true);
 
-    SwingWorker<String, Integer> task = new BackgroundUpload(list);
-    task.addPropertyChangeListener(evt1 -> {
-      if ("progress".equals(evt1.getPropertyName())) {
-        progressBar.setValue((Integer) evt1.getNewValue());
-      }
-    });
     activityProgressBar.setVisible(true);
-    task.execute();
+    cancellation = new Cancellation();
+    new BackgroundUpload(list, cancellation).execute();
+  }
+
+  private void buttonCancelActionPerformed(ActionEvent ignoredEvt) {
+    if (cancellation != null) {
+      Logger.log(Level.INFO, "Cancelling the upload");
+      cancellation.cancel();
+      buttonCancel.setEnabled(false);
+    }
+  }
+
+  /** Only the cancel button can be used while the upload is running, the window itself stays usable */
+  private void setUploading(boolean uploading) {
+    buttonSelect.setEnabled(!uploading);
+    buttonUpload.setEnabled(!uploading);
+    textFieldUsername.setEnabled(!uploading);
+    textFieldPassword.setEnabled(!uploading);
+    fileList.setEnabled(!uploading);
+    buttonCancel.setEnabled(uploading);
   }
 
   private static List<Path> getSelectedPaths(JFileChooser chooser) {
@@ -243,43 +300,94 @@ public class Uploader extends JFrame {
       .toList();
   }
 
-  private final class BackgroundUpload extends SwingWorker<String, Integer> {
+  /** Runs the upload without occupying a thread and updates the UI on the event dispatch thread */
+  private final class BackgroundUpload implements UploadBatchCallback {
     private final FileListModel fileList;
-    private final AtomicInteger uploadCount = new AtomicInteger(0);
+    private final Cancellation cancellation;
 
-    BackgroundUpload(FileListModel fileList) {
+    BackgroundUpload(FileListModel fileList, Cancellation cancellation) {
       this.fileList = fileList;
+      this.cancellation = cancellation;
     }
 
-    @Override
-    public String doInBackground() {
+    void execute() {
+      urlOutputArea.setText("");
       final var username = textFieldUsername.getText();
       final var password = new String(textFieldPassword.getPassword());
-      return new UploadBatch(username, password, new UploadBatchCallbackImpl()).upload(fileList);
+      final UploadJournal journal = open(UploadJournal::open, DataFiles.JOURNAL_FILE);
+      final UploadCache cache = open(UploadCache::open, DataFiles.CACHE_FILE);
+      new UploadBatch(username, password, this).withJournal(journal).withCache(cache).withSessionStore(SESSION_STORE)
+        .withCancellation(cancellation).withImageResizer(menuItemDownscale.isSelected() ? new ImageResizer() : null)
+        .withSegmentFilter(menuItemStripMetadata.isSelected() ? JpegSegmentFilter.METADATA : null)
+        .uploadAsync(fileList)
+        .whenComplete((result, e) -> {
+          close(journal);
+          close(cache);
+          SwingUtilities.invokeLater(() -> done(result, e));
+        });
     }
 
-    @Override
-    protected void done() {
+    private static <T extends Closeable> @Nullable T open(IOFunction<Path, T> opener, Path file) {
       try {
-        urlOutputArea.setText(get());
-        activityProgressBar.setVisible(false);
-      } catch (InterruptedException | ExecutionException e) {
-        Logger.log(Level.ERROR, "Exception in Future.get()", e);
+        return opener.apply(file);
+      } catch (IOException e) {
+        Logger.log(Level.WARN, "Could not open " + file + ", uploading without it", e);
+        return null;
       }
-      Uploader.this.setEnabled(true);
     }
 
-    private final class UploadBatchCallbackImpl implements UploadBatchCallback {
-      @Override
-      public void uploaded(Path uploaded) {
-        setProgress(uploadCount.incrementAndGet());
+    private static void close(@Nullable Closeable closeable) {
+      if (closeable != null) {
+        try {
+          closeable.close();
+        } catch (IOException e) {
+          Logger.log(Level.WARN, "Could not close " + closeable, e);
+        }
       }
+    }
 
-      @Override
-      public void failed(Path cur) {
-        // TODO: show an error somewhere
-        setProgress(uploadCount.incrementAndGet());
+    /**
+     * Replaces the URLs that were shown during the upload with the complete result in the order of the list,
+     * a cancelled upload lists the files that were not uploaded as failed
+     */
+    private void done(@Nullable String result, @Nullable Throwable e) {
+      if (e != null) {
+        Logger.log(Level.ERROR, "Exception in the upload batch", e);
+      } else {
+        urlOutputArea.setText(result);
+        activityProgressBar.setVisible(false);
       }
+      if (Uploader.this.cancellation == cancellation) {
+        Uploader.this.cancellation = null;
+      }
+      setUploading(false);
+    }
+
+    @Override
+    public void uploaded(Path uploaded, String url) {
+      final String text = UploadResult.success(uploaded, url).toText();
+      SwingUtilities.invokeLater(() -> urlOutputArea.append(text));
+    }
+
+    @Override
+    public void failed(Path cur, Throwable cause) {
+      final String text = UploadResult.failure(cur, cause).toText();
+      SwingUtilities.invokeLater(() -> urlOutputArea.append(text));
     }
+
+    @Override
+    public void progress(UploadProgress progress) {
+      final int value = (int) Math.round(progress.fraction() * PROGRESS_STEPS);
+      final String text = progress.toText();
+      SwingUtilities.invokeLater(() -> {
+        progressBar.setValue(Math.max(progressBar.getValue(), value));
+        progressBar.setString(text);
+      });
+    }
+  }
+
+  @FunctionalInterface
+  private interface IOFunction<T, R> {
+    R apply(T t) throws IOException;
   }
 }
@@ -0,0 +1,118 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.util;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+import de.achterblog.util.log.Level;
+import de.achterblog.util.log.Logger;
+
+/**
+ * An {@link AsyncLimiter} that adapts its limit with additive increase and multiplicative decrease
+ * (AIMD): whenever as many requests as the limit completed without a growing latency, the limit is
+ * raised by one. An overloaded server (e.g. server errors or timeouts) halves the limit at once.
+ * Requests that were already running when the limit was halved do not halve it again.
+ * <p>
+ * Only the latencies of comparable requests (e.g. the uploads) should be passed, short requests
+ * like a login would make the usual latency too low and every later upload would look slow.
+ * <p>
+ * Every change of the limit is logged, {@link #getLimit()} returns the current value.
+ *
+ * @author boris
+ */
+public class AdaptiveLimiter extends AsyncLimiter {
+  /** A latency up to this factor of the usual latency still counts as flat */
+  private static final double LATENCY_TOLERANCE = 2.0;
+  /** The weight of a new latency in the usual latency */
+  private static final double SMOOTHING = 0.2;
+
+  private final int maxLimit;
+  private final LongSupplier nanoTime;
+  private double usualLatencyNanos = -1;
+  private int flatRequests = 0;
+  private boolean decreased = false;
+  private long lastDecrease = 0;
+
+  public AdaptiveLimiter(int initialLimit, int maxLimit) {
+    this(initialLimit, maxLimit, System::nanoTime);
+  }
+
+  /** Package private constructor for the test-cases */
+  AdaptiveLimiter(int initialLimit, int maxLimit, LongSupplier nanoTime) {
+    super(initialLimit);
+    if (maxLimit < initialLimit) {
+      throw new IllegalArgumentException("maxLimit must not be lower than initialLimit");
+    }
+    this.maxLimit = maxLimit;
+    this.nanoTime = nanoTime;
+  }
+
+  /** A request completed normally after the latency */
+  public void onSuccess(Duration latency) {
+    final int newLimit;
+    synchronized (this) {
+      final long nanos = latency.toNanos();
+      if (usualLatencyNanos < 0) {
+        usualLatencyNanos = nanos;
+      }
+      final boolean flat = nanos <= usualLatencyNanos * LATENCY_TOLERANCE;
+      usualLatencyNanos += SMOOTHING * (nanos - usualLatencyNanos);
+      final int limit = getLimit();
+      if (!flat) {
+        flatRequests = 0;
+        return;
+      }
+      if (++flatRequests < limit || limit >= maxLimit) {
+        return;
+      }
+      flatRequests = 0;
+      newLimit = limit + 1;
+      setLimit(newLimit);
+    }
+    logLimit(newLimit);
+  }
+
+  /** A request failed after the latency because the server is overloaded */
+  public void onOverload(Duration latency) {
+    final int newLimit;
+    synchronized (this) {
+      final long now = nanoTime.getAsLong();
+      if (decreased && now - latency.toNanos() - lastDecrease < 0) {
+        // the request was already running when the limit was decreased
+        return;
+      }
+      decreased = true;
+      lastDecrease = now;
+      flatRequests = 0;
+      final int limit = getLimit();
+      newLimit = Math.max(1, limit / 2);
+      if (newLimit == limit) {
+        return;
+      }
+      // changed while holding the lock, so a concurrent success cannot undo the decrease
+      setLimit(newLimit);
+    }
+    logLimit(newLimit);
+  }
+
+  private static void logLimit(int newLimit) {
+    Logger.log(Level.INFO, () -> "Changed the limit of parallel requests to " + newLimit);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.function.Consumer;
+
+import de.achterblog.util.log.Level;
+import de.achterblog.util.log.Logger;
+
+/**
+ * A text file that lines can only be appended to.
+ * <p>
+ * Each line is written to the file immediately, so it survives a crash of the application. To keep
+ * appending cheap, {@link FileChannel#force(boolean)} is called at most once per {@code forceInterval}
+ * (and on {@link #close()}), so a crash of the whole system may lose the last lines. A last line
+ * that was torn by a crash is skipped when the file is read.
+ *
+ * @author boris
+ */
+public final class AppendOnlyFile implements Closeable {
+  private final Path file;
+  private final FileChannel channel;
+  private final long forceIntervalNanos;
+  private long lastForce = System.nanoTime();
+  private boolean dirty = false;
+
+  private AppendOnlyFile(Path file, FileChannel channel, Duration forceInterval) {
+    this.file = file;
+    this.channel = channel;
+    this.forceIntervalNanos = forceInterval.toNanos();
+  }
+
+  /**
+   * Open the file (it is created if it does not exist yet) and read all complete lines
+   *
+   * @param lineConsumer Gets every complete line of the file (without the line break)
+   */
+  public static AppendOnlyFile open(Path file, Duration forceInterval, Consumer<String> lineConsumer) throws IOException {
+    final var parent = file.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                 StandardOpenOption.APPEND);
+    final var appendOnlyFile = new AppendOnlyFile(file, channel, forceInterval);
+    try {
+      appendOnlyFile.readLines(lineConsumer);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    return appendOnlyFile;
+  }
+
+  private void readLines(Consumer<String> lineConsumer) throws IOException {
+    final String content = Files.readString(file, StandardCharsets.UTF_8);
+    int start = 0;
+    int end;
+    while ((end = content.indexOf('\n', start)) >= 0) {
+      lineConsumer.accept(content.substring(start, end));
+      start = end + 1;
+    }
+    if (start < content.length()) {
+      // the last line was torn by a crash, terminate it so the next line starts on its own line
+      Logger.log(Level.WARN, () -> "Ignoring incomplete last line of " + file);
+      write("\n");
+    }
+  }
+
+  /** Append a line, it must not contain a line break */
+  public void append(String line) throws IOException {
+    if (line.indexOf('\n') >= 0) {
+      throw new IllegalArgumentException("line must not contain a line break");
+    }
+    synchronized (channel) {
+      write(line + '\n');
+      dirty = true;
+      if (System.nanoTime() - lastForce >= forceIntervalNanos) {
+        force();
+      }
+    }
+  }
+
+  private void write(String text) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    synchronized (channel) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  private void force() throws IOException {
+    channel.force(false);
+    lastForce = System.nanoTime();
+    dirty = false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (channel) {
+      try {
+        if (dirty && channel.isOpen()) {
+          force();
+        }
+      } finally {
+        channel.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A semaphore for asynchronous code: instead of blocking, {@link #acquire()} returns a future that
+ * completes once a permit is available. Waiting callers are served in FIFO order.
+ * <p>
+ * The limit may be changed while permits are in use: a higher limit grants permits to waiting
+ * callers at once, with a lower limit no new permits are granted until enough were given back.
+ *
+ * @author boris
+ */
+public class AsyncLimiter {
+  private final Queue<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+  private int limit;
+  private int inFlight = 0;
+
+  public AsyncLimiter(int limit) {
+    this.limit = checkLimit(limit);
+  }
+
+  /**
+   * Acquire a permit. Every completed permit must be given back with {@link #release()}.
+   *
+   * @return A future that completes when the permit was granted
+   */
+  public CompletableFuture<Void> acquire() {
+    synchronized (waiting) {
+      if (inFlight < limit) {
+        inFlight++;
+        return CompletableFuture.completedFuture(null);
+      }
+      final var permit = new CompletableFuture<Void>();
+      waiting.add(permit);
+      return permit;
+    }
+  }
+
+  /** Give back a permit, the next waiting caller (if any) gets it directly */
+  public void release() {
+    CompletableFuture<Void> next = null;
+    synchronized (waiting) {
+      if (inFlight <= limit) {
+        next = waiting.poll();
+      }
+      if (next == null) {
+        inFlight--;
+      }
+    }
+    if (next != null) {
+      // complete outside the lock, this runs the dependent actions of the next caller
+      next.complete(null);
+    }
+  }
+
+  public int getLimit() {
+    synchronized (waiting) {
+      return limit;
+    }
+  }
+
+  /** The number of permits that are currently in use */
+  public int getInFlight() {
+    synchronized (waiting) {
+      return inFlight;
+    }
+  }
+
+  /** Change the limit, waiting callers get the additional permits directly */
+  public void setLimit(int limit) {
+    checkLimit(limit);
+    final List<CompletableFuture<Void>> granted = new ArrayList<>();
+    synchronized (waiting) {
+      this.limit = limit;
+      while (inFlight < limit && !waiting.isEmpty()) {
+        inFlight++;
+        granted.add(waiting.poll());
+      }
+    }
+    granted.forEach(it -> it.complete(null));
+  }
+
+  private static int checkLimit(int limit) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("limit must be positive");
+    }
+    return limit;
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.util;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.achterblog.util.log.Level;
+import de.achterblog.util.log.Logger;
+
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Publishes the content of a {@link ByteBuffer} or a file in slices.
+ * <p>
+ * The content is opened for every subscription when the first bytes are requested, so the same
+ * publisher can be sent again, and each subscription only keeps its own resources. A buffer is passed
+ * on without copying it. A file is read slice by slice with positional reads from a channel that is
+ * closed as soon as the subscription ends, so the file is neither kept open (and locked on Windows)
+ * until the garbage collector runs, nor read into the heap as a whole. The size of the file is checked
+ * when it is opened, if it changed since the publisher was created the subscription fails instead of
+ * sending a truncated or mixed up file.
+ * <p>
+ * Every slice of a file is read into a new heap buffer, which is the only copy of its bytes on the
+ * heap. The buffers are not pooled: the HTTP client does not tell when it is done with a buffer, it
+ * may still queue it for the socket (or hold slices of it in HTTP/2 frames) after it requested the
+ * next one, so a reused buffer could be overwritten before it was sent.
+ *
+ * @author boris
+ */
+final class ByteBufferPublisher implements HttpRequest.BodyPublisher {
+  /** The size of the slices, small enough for a smooth progress and rate limit */
+  private static final int SLICE_SIZE = 64 * 1024;
+
+  private final long length;
+  private final Source source;
+
+  private ByteBufferPublisher(long length, Source source) {
+    this.length = length;
+    this.source = source;
+  }
+
+  /**
+   * Publish the content of the file, its size is read now and it must not change until it is sent
+   *
+   * @throws IOException If the size of the file cannot be read
+   */
+  static ByteBufferPublisher ofFile(Path path) throws IOException {
+    final long size = Files.size(path);
+    return ofFile(path, 0, size, size);
+  }
+
+  /**
+   * Publish {@code length} bytes of the file from {@code offset} on. The file has {@code fileSize} bytes and
+   * it must not change until it is sent.
+   */
+  static ByteBufferPublisher ofFile(Path path, long offset, long length, long fileSize) {
+    return new ByteBufferPublisher(length, () -> openFile(path, offset, fileSize));
+  }
+
+  /**
+   * Publish the remaining content of the buffer, it must not change until it is sent. The position of the
+   * buffer is not changed, every subscription reads from its own view of it.
+   */
+  static ByteBufferPublisher ofBuffer(ByteBuffer buffer) {
+    final ByteBuffer content = buffer.slice().asReadOnlyBuffer();
+    return new ByteBufferPublisher(content.remaining(), () -> new BufferContent(content.duplicate()));
+  }
+
+  private static Content openFile(Path path, long offset, long fileSize) throws IOException {
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      final long size = channel.size();
+      if (size != fileSize) {
+        throw new IOException("The size of " + path + " changed from " + fileSize + " to " + size + " bytes");
+      }
+      return new FileContent(path, channel, offset);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public long contentLength() {
+    return length;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+    subscriber.onSubscribe(new Subscription(subscriber));
+  }
+
+  /** Opens the content that is published, it is called once for every subscription */
+  @FunctionalInterface
+  interface Source {
+    Content open() throws IOException;
+  }
+
+  /** The content of one subscription, it is read from the start to the end and closed when the subscription ends */
+  interface Content {
+    /** Get the next {@code size} bytes, there are at least as many bytes left */
+    ByteBuffer next(int size) throws IOException;
+
+    default void close() {
+    }
+  }
+
+  private static final class BufferContent implements Content {
+    private final ByteBuffer buffer;
+
+    BufferContent(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public ByteBuffer next(int size) {
+      final ByteBuffer slice = buffer.slice(buffer.position(), size);
+      buffer.position(buffer.position() + size);
+      return slice;
+    }
+  }
+
+  private static final class FileContent implements Content {
+    private final Path path;
+    private final FileChannel channel;
+    private long position;
+
+    FileContent(Path path, FileChannel channel, long position) {
+      this.path = path;
+      this.channel = channel;
+      this.position = position;
+    }
+
+    @Override
+    public ByteBuffer next(int size) throws IOException {
+      // a new buffer for every slice, the HTTP client may still hold the previous one
+      final ByteBuffer buffer = ByteBuffer.allocate(size);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new IOException("The file " + path + " is shorter than " + (position + size) + " bytes");
+        }
+      }
+      position += size;
+      return buffer.flip();
+    }
+
+    @Override
+    public void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Logger.log(Level.WARN, () -> "Failed to close " + path, e);
+      }
+    }
+  }
+
+  private final class Subscription implements Flow.Subscription {
+    private final Flow.Subscriber<? super ByteBuffer> subscriber;
+    private final AtomicLong demand = new AtomicLong();
+    /** Makes sure only one thread publishes at a time, see {@link #drain()} */
+    private final AtomicInteger pendingDrains = new AtomicInteger();
+    private @Nullable Content content = null;
+    private long remaining = length;
+    private volatile boolean done = false;
+
+    Subscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        done = true;
+        subscriber.onError(new IllegalArgumentException("The demand must be positive, but was " + n));
+        drain();
+        return;
+      }
+      demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      done = true;
+      drain();
+    }
+
+    /** Publish as many slices as requested, a request of the subscriber while it gets a slice continues the loop */
+    private void drain() {
+      if (pendingDrains.getAndIncrement() != 0) {
+        return;
+      }
+      do {
+        publish();
+      } while (pendingDrains.decrementAndGet() != 0);
+    }
+
+    private void publish() {
+      try {
+        while (!done && demand.get() > 0) {
+          if (content == null) {
+            content = source.open();
+          }
+          if (remaining == 0) {
+            done = true;
+            close();
+            subscriber.onComplete();
+            break;
+          }
+          final int size = (int) Math.min(SLICE_SIZE, remaining);
+          final ByteBuffer slice = content.next(size);
+          remaining -= size;
+          demand.decrementAndGet();
+          subscriber.onNext(slice);
+        }
+      } catch (IOException | RuntimeException e) {
+        done = true;
+        close();
+        subscriber.onError(e);
+      }
+      if (done) {
+        close();
+      }
+    }
+
+    /** Close the file of the subscription as soon as it ends, it is closed only once */
+    private void close() {
+      final Content current = content;
+      if (current != null) {
+        content = null;
+        current.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.util;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Removes segments like EXIF, XMP, ICC profiles, embedded thumbnails or comments from JPEG files while
+ * they are sent, without decoding the image.
+ * <p>
+ * Only the headers of the file (everything before the image data) are read to find the segments, the
+ * rest of the file is sent as it is. If the EXIF segment is removed, the orientation of the camera is
+ * kept in a minimal EXIF segment of its own, so the image is still shown upright. Files that are no
+ * JPEG or cannot be parsed are sent unchanged.
+ *
+ * @author boris
+ */
+public final class JpegSegmentFilter {
+  private static final int APP0 = 0xE0;
+  private static final int APP1 = 0xE1;
+  private static final int APP14 = 0xEE;
+  private static final int APP15 = 0xEF;
+  private static final int COM = 0xFE;
+  private static final int SOS = 0xDA;
+  private static final int EOI = 0xD9;
+  private static final int ORIENTATION_TAG = 0x0112;
+  private static final int EXIF_HEADER_LENGTH = 6;
+
+  /**
+   * All metadata that is not needed to show the image: APP1 to APP13, APP15 and comments. The JFIF header
+   * (APP0) and the Adobe segment (APP14, it tells how the colours are stored) are kept. Without the ICC
+   * profile (APP2) the colours are shown as sRGB.
+   */
+  public static final JpegSegmentFilter METADATA = new JpegSegmentFilter(metadataMarkers());
+
+  private final Set<Integer> markers;
+
+  /**
+   * @param markers The markers of the segments that are removed, only APPn ({@code 0xE0} to {@code 0xEF})
+   *                and COM ({@code 0xFE}) segments can be removed, the others are needed to decode the image
+   */
+  public JpegSegmentFilter(Set<Integer> markers) {
+    for (int marker : markers) {
+      if (!(marker >= APP0 && marker <= APP15 || marker == COM)) {
+        throw new IllegalArgumentException("Only APPn and COM segments can be removed, not 0x" + Integer.toHexString(marker));
+      }
+    }
+    this.markers = Set.copyOf(markers);
+  }
+
+  private static Set<Integer> metadataMarkers() {
+    final Set<Integer> markers = new HashSet<>();
+    for (int marker = APP1; marker <= APP15; marker++) {
+      if (marker != APP14) {
+        markers.add(marker);
+      }
+    }
+    markers.add(COM);
+    return markers;
+  }
+
+  /** The markers of the removed segments in a stable order, to tell uploads with different filters apart */
+  public String settings() {
+    return markers.stream().sorted().map(Integer::toHexString).collect(Collectors.joining(",", "strip=", ""));
+  }
+
+  /**
+   * Publish the file without the removed segments, the file must not change until it is sent
+   *
+   * @throws IOException If the headers of the file cannot be read
+   */
+  HttpRequest.BodyPublisher publisher(Path path) throws IOException {
+    final List<HttpRequest.BodyPublisher> parts = new ArrayList<>();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (!scan(path, channel, parts)) {
+        final long size = channel.size();
+        return ByteBufferPublisher.ofFile(path, 0, size, size);
+      }
+    }
+    return parts.size() == 1 ? parts.getFirst() : HttpRequest.BodyPublishers.concat(parts.toArray(HttpRequest.BodyPublisher[]::new));
+  }
+
+  /**
+   * Add the parts of the file that are kept to {@code parts}
+   *
+   * @return false if the file is no JPEG that can be parsed
+   */
+  private boolean scan(Path path, FileChannel channel, List<HttpRequest.BodyPublisher> parts) throws IOException {
+    final long size = channel.size();
+    final ByteBuffer marker = ByteBuffer.allocate(4);
+    if (size < 4 || !read(channel, marker.limit(2), 0) || marker.getShort(0) != (short) 0xFFD8) {
+      return false;
+    }
+    // the start of the bytes that are kept since the last removed segment
+    long kept = 0;
+    long position = 2;
+    while (true) {
+      if (!read(channel, marker.clear().limit(2), position) || (marker.get(0) & 0xFF) != 0xFF) {
+        return false;
+      }
+      final int type = marker.get(1) & 0xFF;
+      if (type == 0xFF) {
+        // a fill byte before the marker
+        position++;
+        continue;
+      }
+      if (type == SOS || type == EOI) {
+        // the image data follows, it is sent as it is
+        break;
+      }
+      if (type == 0x01 || type >= 0xD0 && type <= 0xD7) {
+        // markers without a segment
+        position += 2;
+        continue;
+      }
+      if (!read(channel, marker.clear(), position)) {
+        return false;
+      }
+      final int length = Short.toUnsignedInt(marker.getShort(2));
+      final long end = position + 2 + length;
+      if (length < 2 || end > size) {
+        return false;
+      }
+      if (markers.contains(type)) {
+        if (position > kept) {
+          parts.add(ByteBufferPublisher.ofFile(path, kept, position - kept, size));
+        }
+        if (type == APP1) {
+          final ByteBuffer segment = ByteBuffer.allocate(length - 2);
+          if (!read(channel, segment, position + 4)) {
+            return false;
+          }
+          final int orientation = exifOrientation(segment.array());
+          if (orientation != 1) {
+            parts.add(HttpRequest.BodyPublishers.ofByteArray(orientationSegment(orientation)));
+          }
+        }
+        kept = end;
+      }
+      position = end;
+    }
+    parts.add(ByteBufferPublisher.ofFile(path, kept, size - kept, size));
+    return true;
+  }
+
+  /** Fill the buffer from the position of the channel, false if the file ends before */
+  private static boolean read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The orientation of the camera (1 to 8) in the content of an APP1 segment, 1 (as it is) if there is none
+   *
+   * @param exif The content of the segment after its length, starting with {@code Exif\0\0}
+   */
+  public static int exifOrientation(byte[] exif) {
+    if (exif.length < EXIF_HEADER_LENGTH + 8 || !new String(exif, 0, 4, StandardCharsets.US_ASCII).equals("Exif")) {
+      return 1;
+    }
+    // a TIFF header and the first directory, which has the orientation
+    final ByteBuffer tiff = ByteBuffer.wrap(exif, EXIF_HEADER_LENGTH, exif.length - EXIF_HEADER_LENGTH).slice();
+    tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    final int directory = tiff.getInt(4);
+    if (directory < 8 || directory > tiff.limit() - 2) {
+      return 1;
+    }
+    final int entries = Short.toUnsignedInt(tiff.getShort(directory));
+    for (int i = 0; i < entries; i++) {
+      final int entry = directory + 2 + i * 12;
+      if (entry > tiff.limit() - 12) {
+        break;
+      }
+      if (Short.toUnsignedInt(tiff.getShort(entry)) == ORIENTATION_TAG) {
+        final int orientation = Short.toUnsignedInt(tiff.getShort(entry + 8));
+        return orientation >= 1 && orientation <= 8 ? orientation : 1;
+      }
+    }
+    return 1;
+  }
+
+  /** A minimal APP1 segment with only the orientation of the camera, package private for the test-cases */
+  static byte[] orientationSegment(int orientation) {
+    // the header of the segment, "Exif\0\0", a TIFF header and a directory with only the orientation
+    final ByteBuffer segment = ByteBuffer.allocate(4 + EXIF_HEADER_LENGTH + 8 + 2 + 12 + 4);
+    segment.put((byte) 0xFF).put((byte) APP1).putShort((short) (segment.capacity() - 2));
+    segment.put("Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+    segment.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+    segment.putShort((short) 1);
+    segment.putShort((short) ORIENTATION_TAG).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+    segment.putInt(0);
+    return segment.array();
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.util;
+
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Counts the bytes of a request body for the progress and limits the bytes per second that are
+ * sent: before a buffer is passed on, it takes one token per byte from the {@link TokenBucket}. If the
+ * tokens are not available yet, the buffer is passed on later by a delayed task, no thread waits for
+ * it. The buffers are requested from the body one by one, so the pacing holds back the body as well.
+ * The count starts again for every subscription.
+ *
+ * @author boris
+ */
+final class MeteredBodyPublisher implements HttpRequest.BodyPublisher {
+  private final HttpRequest.BodyPublisher body;
+  private final @Nullable TokenBucket bytesPerSecond;
+  private final @Nullable LongConsumer bytesSent;
+
+  MeteredBodyPublisher(HttpRequest.BodyPublisher body, @Nullable TokenBucket bytesPerSecond, @Nullable LongConsumer bytesSent) {
+    this.body = body;
+    this.bytesPerSecond = bytesPerSecond;
+    this.bytesSent = bytesSent;
+  }
+
+  @Override
+  public long contentLength() {
+    return body.contentLength();
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+    body.subscribe(new MeteredSubscriber(subscriber));
+  }
+
+  /** Subscribes to the body and is the subscription of the subscriber of the metered body */
+  private final class MeteredSubscriber implements Flow.Subscriber<ByteBuffer>, Flow.Subscription {
+    private final Flow.Subscriber<? super ByteBuffer> subscriber;
+    /** The buffers the subscriber requested and did not get yet */
+    private final AtomicLong demand = new AtomicLong();
+    /** A buffer was requested from the body and is not passed on yet */
+    private final AtomicBoolean requested = new AtomicBoolean();
+    /** A buffer is passed on (maybe after a delay), the completion has to wait for it */
+    private volatile boolean passing = false;
+    private volatile boolean completed = false;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private Flow.@Nullable Subscription subscription;
+    /** Only changed while a buffer is passed on, which is never done concurrently */
+    private long count = 0;
+
+    MeteredSubscriber(Flow.Subscriber<? super ByteBuffer> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscriber.onSubscribe(this);
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        fail(new IllegalArgumentException("The demand must be positive, but was " + n));
+        cancelBody();
+        return;
+      }
+      demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+      requestNext();
+    }
+
+    @Override
+    public void cancel() {
+      done.set(true);
+      cancelBody();
+    }
+
+    private void cancelBody() {
+      final Flow.Subscription current = subscription;
+      if (current != null) {
+        current.cancel();
+      }
+    }
+
+    private void requestNext() {
+      final Flow.Subscription current = subscription;
+      if (current != null && !done.get() && demand.get() > 0 && requested.compareAndSet(false, true)) {
+        current.request(1);
+      }
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+      passing = true;
+      final long wait = bytesPerSecond != null ? bytesPerSecond.reserve(item.remaining()) : 0;
+      if (wait > 0) {
+        CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS).execute(() -> pass(item));
+      } else {
+        pass(item);
+      }
+    }
+
+    private void pass(ByteBuffer item) {
+      if (!done.get()) {
+        count += item.remaining();
+        if (bytesSent != null) {
+          bytesSent.accept(count);
+        }
+        demand.decrementAndGet();
+        subscriber.onNext(item);
+      }
+      passing = false;
+      requested.set(false);
+      if (completed) {
+        complete();
+      } else {
+        requestNext();
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+      if (!passing) {
+        complete();
+      }
+    }
+
+    private void complete() {
+      if (done.compareAndSet(false, true)) {
+        subscriber.onComplete();
+      }
+    }
+
+    private void fail(Throwable throwable) {
+      if (done.compareAndSet(false, true)) {
+        subscriber.onError(throwable);
+      }
+    }
+  }
+}
@@ -18,38 +18,67 @@
  */
 package de.achterblog.util;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.SequenceInputStream;
 import java.io.UncheckedIOException;
 import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.jspecify.annotations.Nullable;
 
-public class MultiPartBodyPublisher implements Closeable {
+/**
+ * Builds a {@code multipart/form-data} request body from string and file parts. The content of a file
+ * part is either read from a file or it is given in memory (e.g. an image that was processed before
+ * the upload), so it does not have to be written to disk first.
+ * <p>
+ * The length of the body is computed when it is built (from the encoded headers and the sizes of the
+ * files), so it is sent with a {@code Content-Length} instead of chunked transfer encoding.
+ * <p>
+ * Every part is published on its own and the HTTP client gets the parts one after another. The
+ * content of the files is read in slices with positional reads, see {@link ByteBufferPublisher}, so
+ * it is not copied through streams. The boundary and the constant parts of the headers are encoded
+ * only once, and all headers between two files are written into one buffer that becomes a single part
+ * of the body.
+ * <p>
+ * Once it was built, the publisher cannot be changed anymore and {@link #build()} always returns the same
+ * body. That body can be subscribed to any number of times (e.g. for a retry of the request), every
+ * subscription reads the parts on its own and releases its resources when it is done.
+ *
+ * @author boris
+ */
+public class MultiPartBodyPublisher {
   private static final String CRLF = "\r\n";
 
   private final List<Part> partsList = new ArrayList<>();
   @Getter
   private final String boundary;
   private final Charset charset;
+  // the encoded boundary and header fragments, they are the same for every part
+  private final byte[] dashBoundary;
+  private final byte[] crlf;
+  private final byte[] dispositionName;
+  private final byte[] filenameAttribute;
+  private final byte[] quote;
+  private final byte[] contentTypeHeader;
+  private final byte[] textContentTypeHeader;
+  private final byte[] finalBoundary;
 
-  private @Nullable PartInputStreamEnumeration partInputStreamEnumeration = null;
+  private @Nullable TokenBucket bytesPerSecond = null;
+  private @Nullable LongConsumer bytesSent = null;
+  private @Nullable JpegSegmentFilter segmentFilter = null;
+  private HttpRequest.@Nullable BodyPublisher body = null;
 
   public MultiPartBodyPublisher(Charset charset) {
     this(charset, () -> UUID.randomUUID().toString());
@@ -58,43 +87,142 @@ public class MultiPartBodyPublisher implements Closeable {
   MultiPartBodyPublisher(Charset charset, Supplier<String> boundaryGenerator) {
     this.charset = Objects.requireNonNull(charset, "charset");
     this.boundary = boundaryGenerator.get();
+    this.dashBoundary = encode("--" + boundary);
+    this.crlf = encode(CRLF);
+    this.dispositionName = encode("Content-Disposition: form-data; name=\"");
+    this.filenameAttribute = encode("\"; filename=\"");
+    this.quote = encode("\"");
+    this.contentTypeHeader = encode("Content-Type: ");
+    this.finalBoundary = encode("--" + boundary + "--");
+    this.textContentTypeHeader = encode("Content-Type: text/plain; charset=" + charset.displayName() + CRLF + CRLF);
   }
 
+  /**
+   * Build the body, the files must not change until it was sent for the last time.
+   * Calling this again returns the body that was built the first time.
+   *
+   * @throws UncheckedIOException If the size of a file cannot be read
+   */
   public HttpRequest.BodyPublisher build() {
+    final HttpRequest.BodyPublisher built = body;
+    if (built != null) {
+      return built;
+    }
     validState(!partsList.isEmpty(), "No parts defined yet");
-    addEndOfMultiPartPart();
-    return HttpRequest.BodyPublishers.ofInputStream(() -> {
-      partInputStreamEnumeration = new PartInputStreamEnumeration();
-      return new SequenceInputStream(partInputStreamEnumeration);
-    });
+    final List<HttpRequest.BodyPublisher> publishers = new ArrayList<>();
+    // consecutive text parts are collected in one buffer and published together
+    final var text = new ByteArrayOutputStream(256);
+    try {
+      for (Part part : partsList) {
+        part.addTo(publishers, text);
+      }
+      new FinalBoundaryPart().writeTo(text);
+      addText(publishers, text);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot determine the length of the body: " + e.getMessage(), e);
+    }
+    // all parts have a known length, so the body has one as well
+    final HttpRequest.BodyPublisher parts = HttpRequest.BodyPublishers.concat(publishers.toArray(HttpRequest.BodyPublisher[]::new));
+    final HttpRequest.BodyPublisher result = bytesPerSecond != null || bytesSent != null
+      ? new MeteredBodyPublisher(parts, bytesPerSecond, bytesSent) : parts;
+    body = result;
+    return result;
+  }
+
+  private static void addText(List<HttpRequest.BodyPublisher> publishers, ByteArrayOutputStream text) {
+    if (text.size() > 0) {
+      publishers.add(HttpRequest.BodyPublishers.ofByteArray(text.toByteArray()));
+      text.reset();
+    }
+  }
+
+  /**
+   * Report the number of bytes that were handed to the HTTP client so far, after every buffer of the body.
+   * Every subscription (e.g. a retry of the request) starts again at 0.
+   */
+  public MultiPartBodyPublisher onProgress(LongConsumer bytesSent) {
+    validNotBuilt();
+    this.bytesSent = bytesSent;
+    return this;
+  }
+
+  /** Limit the bytes per second that are sent, the same bucket may be shared with other requests */
+  public MultiPartBodyPublisher limitRate(TokenBucket bytesPerSecond) {
+    validNotBuilt();
+    this.bytesPerSecond = bytesPerSecond;
+    return this;
+  }
+
+  /** Remove the segments of the filter from the files that are JPEGs while they are sent, e.g. their metadata */
+  public MultiPartBodyPublisher filterSegments(JpegSegmentFilter segmentFilter) {
+    validNotBuilt();
+    this.segmentFilter = segmentFilter;
+    return this;
   }
 
   public MultiPartBodyPublisher addPart(String name, String value) {
     return addPart(new StringPart(name, value));
   }
 
-  public MultiPartBodyPublisher addPart(String name, Path path, @Nullable String filename, String contentType) {
+  public MultiPartBodyPublisher addPart(String name, Path path, @Nullable String filename, @Nullable String contentType) {
+    validNotBuilt();
     validState(Files.exists(path), "File does not exist");
-    return this.addPart(new FilePart(name, path, filename, contentType))
-               .addPart(new FileContentPart(path))
-               .addPart(new LineBreakPart());
+    final String realFilename = filename != null ? filename : Objects.toString(path.getFileName());
+    return addFilePart(new FilePart(name, realFilename, contentType != null ? contentType : probeContentType(path)),
+                       new FileContentPart(path));
+  }
+
+  /** Add a file with the given content, the array must not change until the body was sent for the last time */
+  public MultiPartBodyPublisher addPart(String name, byte[] content, String filename, String contentType) {
+    return addPart(name, ByteBuffer.wrap(content), filename, contentType);
+  }
+
+  /**
+   * Add a file with the remaining content of the buffer, the content must not change until the body was sent for
+   * the last time. The position of the buffer is not changed.
+   */
+  public MultiPartBodyPublisher addPart(String name, ByteBuffer content, String filename, String contentType) {
+    validNotBuilt();
+    return addFilePart(new FilePart(name, filename, contentType), new ContentPart(ByteBufferPublisher.ofBuffer(content)));
+  }
+
+  /**
+   * Add a file with the content of a stream, a new stream is opened for every time the body is sent.
+   * Every stream must have exactly {@code size} bytes, otherwise sending the body fails.
+   */
+  public MultiPartBodyPublisher addPart(String name, Supplier<? extends InputStream> content, long size, String filename,
+                                        String contentType) {
+    validNotBuilt();
+    validState(size >= 0, "The size must not be negative");
+    final var publisher = HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(content), size);
+    return addFilePart(new FilePart(name, filename, contentType), new ContentPart(publisher));
+  }
+
+  private MultiPartBodyPublisher addFilePart(FilePart header, Part content) {
+    return addPart(header).addPart(content).addPart(new LineBreakPart());
+  }
+
+  private static String probeContentType(Path path) {
+    try {
+      final String contentType = Files.probeContentType(path);
+      return contentType != null ? contentType : "application/octet-stream";
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot determine the content type of " + path + ": " + e.getMessage(), e);
+    }
   }
 
   private MultiPartBodyPublisher addPart(Part e) {
+    validNotBuilt();
     partsList.add(e);
     return this;
   }
 
-  private void addEndOfMultiPartPart() {
-    //noinspection resource
-    addPart(new FinalBoundaryPart());
+  private void validNotBuilt() {
+    validState(body == null, "The body was already built");
   }
 
-  @Override
-  public void close() throws IOException {
-    if (partInputStreamEnumeration != null) {
-      partInputStreamEnumeration.close();
-    }
+  private byte[] encode(String s) {
+    return s.getBytes(charset);
   }
 
   private static void validState(boolean state, String message) {
@@ -104,98 +232,108 @@ public class MultiPartBodyPublisher implements Closeable {
   }
 
   private abstract class Part {
-    abstract InputStream asStream() throws IOException;
+    /** Add the part to the publishers of the body, the text parts are collected in {@code text} */
+    abstract void addTo(List<HttpRequest.BodyPublisher> publishers, ByteArrayOutputStream text) throws IOException;
+  }
+
+  /** A part that is a short text, like a header, it is published together with the text parts around it */
+  private abstract class TextPart extends Part {
+    /** Write the encoded text to the buffer */
+    abstract void writeTo(ByteArrayOutputStream out);
 
-    InputStream fromString(String value) {
-      return new ByteArrayInputStream(value.getBytes(charset));
+    @Override
+    final void addTo(List<HttpRequest.BodyPublisher> publishers, ByteArrayOutputStream text) {
+      writeTo(text);
     }
   }
 
-  @RequiredArgsConstructor
-  private final class StringPart extends Part {
-    private final String name;
-    private final String value;
+  /** A part that is published on its own, like the content of a file */
+  private abstract class PublishedPart extends Part {
+    /** The publisher of the bytes of the part, it must have a known length */
+    abstract HttpRequest.BodyPublisher publisher() throws IOException;
 
     @Override
-    InputStream asStream() {
-      String part =
-        "--" + boundary + CRLF +
-          "Content-Disposition: form-data; name=\"" + name + "\"" + CRLF +
-          "Content-Type: text/plain; charset=" + charset.displayName() + CRLF + CRLF +
-          value + CRLF;
-      return fromString(part);
+    final void addTo(List<HttpRequest.BodyPublisher> publishers, ByteArrayOutputStream text) throws IOException {
+      addText(publishers, text);
+      publishers.add(publisher());
     }
   }
 
   @RequiredArgsConstructor
-  private final class FilePart extends Part {
+  private final class StringPart extends TextPart {
     private final String name;
-    private final Path path;
-    private final @Nullable String filename;
-    private final @Nullable String contentType;
+    private final String value;
 
     @Override
-    InputStream asStream() throws IOException {
-      final String realContentType = contentType != null ? contentType : Files.probeContentType(path);
-      final String realFilename = filename != null ? filename : Objects.toString(path.getFileName());
-      String partHeader =
-        "--" + boundary + CRLF +
-          "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + realFilename + "\"" + CRLF +
-          "Content-Type: " + realContentType + CRLF + CRLF;
-      return fromString(partHeader);
+    void writeTo(ByteArrayOutputStream out) {
+      out.writeBytes(dashBoundary);
+      out.writeBytes(crlf);
+      out.writeBytes(dispositionName);
+      out.writeBytes(encode(name));
+      out.writeBytes(quote);
+      out.writeBytes(crlf);
+      out.writeBytes(textContentTypeHeader);
+      out.writeBytes(encode(value));
+      out.writeBytes(crlf);
     }
   }
 
   @RequiredArgsConstructor
-  private final class FileContentPart extends Part {
-    private final Path path;
+  private final class FilePart extends TextPart {
+    private final String name;
+    private final String filename;
+    private final String contentType;
 
     @Override
-    InputStream asStream() throws IOException {
-      return new BufferedInputStream(Files.newInputStream(path));
+    void writeTo(ByteArrayOutputStream out) {
+      out.writeBytes(dashBoundary);
+      out.writeBytes(crlf);
+      out.writeBytes(dispositionName);
+      out.writeBytes(encode(name));
+      out.writeBytes(filenameAttribute);
+      out.writeBytes(encode(filename));
+      out.writeBytes(quote);
+      out.writeBytes(crlf);
+      out.writeBytes(contentTypeHeader);
+      out.writeBytes(encode(contentType));
+      out.writeBytes(crlf);
+      out.writeBytes(crlf);
     }
   }
 
-  private final class FinalBoundaryPart extends Part {
-    @Override
-    InputStream asStream() {
-      return fromString("--" + boundary + "--");
-    }
-  }
+  @RequiredArgsConstructor
+  private final class FileContentPart extends PublishedPart {
+    private final Path path;
 
-  private class LineBreakPart extends Part {
     @Override
-    InputStream asStream() {
-      return fromString(CRLF);
+    HttpRequest.BodyPublisher publisher() throws IOException {
+      final JpegSegmentFilter filter = segmentFilter;
+      return filter != null ? filter.publisher(path) : ByteBufferPublisher.ofFile(path);
     }
   }
 
-  private final class PartInputStreamEnumeration implements Enumeration<InputStream>, Closeable {
-    private final Iterator<Part> partIterator = partsList.iterator();
-    private @Nullable InputStream currentStream = null;
+  /** The content of a file that was given in memory, the publisher can be subscribed to again */
+  @RequiredArgsConstructor
+  private final class ContentPart extends PublishedPart {
+    private final HttpRequest.BodyPublisher publisher;
 
     @Override
-    public boolean hasMoreElements() {
-      return partIterator.hasNext();
+    HttpRequest.BodyPublisher publisher() {
+      return publisher;
     }
+  }
 
+  private final class FinalBoundaryPart extends TextPart {
     @Override
-    public InputStream nextElement() {
-      try {
-        close();
-        currentStream = partIterator.next().asStream();
-        return currentStream;
-      } catch (IOException e) {
-        throw new UncheckedIOException("Failed to open stream for next part: " + e.getMessage(), e);
-      }
+    void writeTo(ByteArrayOutputStream out) {
+      out.writeBytes(finalBoundary);
     }
+  }
 
+  private class LineBreakPart extends TextPart {
     @Override
-    public void close() throws IOException {
-      if (currentStream != null) {
-        currentStream.close();
-        currentStream = null;
-      }
+    void writeTo(ByteArrayOutputStream out) {
+      out.writeBytes(crlf);
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of the FZPWUploader
+ *
+ * Copyright (C) 2009-2020 achterblog.de
+ *
+ * FZPWUploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FZPWUploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FZPWUploader.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package de.achterblog.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket: tokens are added with a constant rate up to the capacity of the bucket, taking
+ * more tokens than available has to wait until they were added.
+ * <p>
+ * {@link #reserve(long)} takes the tokens at once and returns the time until they are really
+ * available, so asynchronous code can schedule the work instead of blocking. Later callers wait for
+ * the earlier reservations, so the rate is kept for all callers together.
+ *
+ * @author boris
+ */
+public final class TokenBucket {
+  private final double tokensPerNano;
+  private final long capacity;
+  private final LongSupplier nanoTime;
+  private double available;
+  private long lastRefill;
+
+  /**
+   * @param tokensPerSecond The rate the tokens are added with
+   * @param capacity The maximum number of tokens that may be taken at once without waiting (the burst)
+   */
+  public TokenBucket(double tokensPerSecond, long capacity) {
+    this(tokensPerSecond, capacity, System::nanoTime);
+  }
+
+  /** Package private constructor for the test-cases */
+  TokenBucket(double tokensPerSecond, long capacity, LongSupplier nanoTime) {
+    if (!(tokensPerSecond > 0) || capacity < 1) {
+      throw new IllegalArgumentException("tokensPerSecond and capacity must be positive");
+    }
+    this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.capacity = capacity;
+    this.nanoTime = nanoTime;
+    this.available = capacity;
+    this.lastRefill = nanoTime.getAsLong();
+  }
+
+  /**
+   * Take the tokens, even if they are not available yet
+   *
+   * @return The nanoseconds to wait until the tokens are available, 0 if they are available now
+   */
+  public synchronized long reserve(long tokens) {
+    final long now = nanoTime.getAsLong();
+    available = Math.min(capacity, available + (now - lastRefill) * tokensPerNano);
+    lastRefill = now;
+    available -= tokens;
+    return available >= 0 ? 0 : (long) Math.ceil(-available / tokensPerNano);
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+}
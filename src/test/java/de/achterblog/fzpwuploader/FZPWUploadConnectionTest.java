@@ -20,13 +20,26 @@ package de.achterblog.fzpwuploader;
 
 import java.io.IOException;
 import java.io.Serial;
+import java.net.HttpCookie;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
@@ -40,6 +53,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import de.achterblog.fzpwuploader.UploadConnection.LoginStatus;
+import de.achterblog.util.AdaptiveLimiter;
 import de.achterblog.util.log.Level;
 import de.achterblog.util.log.Logger;
 import jakarta.servlet.MultipartConfigElement;
@@ -65,6 +79,11 @@ public class FZPWUploadConnectionTest {
   private static volatile Map<String, String> lastRequestParameters;
   private static volatile List<FileUpload> lastFileItems;
   private static volatile List<Cookie> lastCookies;
+  private static final Queue<Integer> nextErrorStatuses = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger requestCount = new AtomicInteger();
+  private static volatile long responseDelayMillis;
+  private static final RetryPolicy FAST_RETRIES = RetryPolicy.DEFAULT.withInitialDelay(Duration.ofMillis(10))
+                                                                       .withMaxDelay(Duration.ofMillis(20));
 
   @TempDir
   public static Path tempDir;
@@ -95,6 +114,9 @@ public class FZPWUploadConnectionTest {
     connection = new FZPWUploadConnection(baseTestUrl);
     nextResponse = "";
     lastRequestParameters = Map.of();
+    nextErrorStatuses.clear();
+    requestCount.set(0);
+    responseDelayMillis = 0;
   }
 
   @AfterEach
@@ -164,6 +186,246 @@ public class FZPWUploadConnectionTest {
     assertArrayEquals(fileContents, getFieldValue.apply("file_upload").content);
   }
 
+  @Test
+  public void testUploadLargeFile() throws Exception {
+    // large enough to be sent in many slices
+    final byte[] fileContents = new byte[3 * 1024 * 1024 + 17];
+    new Random(1).nextBytes(fileContents);
+    final Path testFile = tempDir.resolve("testUploadLargeFile.test");
+    Files.write(testFile, fileContents);
+
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    connection.login("", "");
+    nextResponse = "https://Freizeitparkweb.de/dcf/User_files/abcdef0123456789.jpg";
+    assertThat(connection.upload(testFile), is(nextResponse));
+    assertArrayEquals(fileContents, lastFileItems.stream().filter(it -> "file_upload".equals(it.name)).findFirst().orElseThrow().content);
+  }
+
+  @Test
+  public void testUploadAsync() throws Exception {
+    final Path testFile = tempDir.resolve("testUploadAsync.test");
+    Files.write(testFile, new byte[]{1, 2, 3});
+
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    assertThat(connection.loginAsync("", "").get(), is(LoginStatus.LOGGED_IN));
+    nextResponse = "https://Freizeitparkweb.de/dcf/User_files/abcdef.jpg";
+    assertThat(connection.uploadAsync(testFile).get(), is(nextResponse));
+
+    nextResponse = "Der User wurde auf diesem Rechner ausgeloggt...";
+    assertThat(connection.logoutAsync().get(), is(true));
+    assertThat(connection.getLoginStatus(), is(LoginStatus.LOGGED_OUT));
+  }
+
+  @Test
+  public void testUploadAsyncFindsNoURL() throws Exception {
+    final Path testFile = tempDir.resolve("testUploadAsyncFindsNoURL.test");
+    Files.write(testFile, new byte[0]);
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    connection.login("", "");
+    final var e = assertThrows(ExecutionException.class, () -> connection.uploadAsync(testFile).get());
+    assertThat(e.getCause(), instanceOf(UploadException.class));
+  }
+
+  @Test
+  public void testLogoutWithoutLogin() {
+    assertThat(connection.logout(), is(false));
+    assertThat(connection.getLoginStatus(), is(LoginStatus.LOGGED_OUT));
+  }
+
+  @Test
+  public void testUploadRetriesServerErrors() throws Exception {
+    final byte[] fileContents = new byte[]{4, 5, 6};
+    final Path testFile = tempDir.resolve("testUploadRetriesServerErrors.test");
+    Files.write(testFile, fileContents);
+    connection = new FZPWUploadConnection(baseTestUrl, FAST_RETRIES);
+
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    connection.login("", "");
+    nextResponse = "https://Freizeitparkweb.de/dcf/User_files/abc.jpg";
+    requestCount.set(0);
+    nextErrorStatuses.addAll(List.of(503, 500));
+
+    assertThat(connection.upload(testFile), is(nextResponse));
+    assertThat(requestCount.get(), is(3));
+    // the body must be complete again in the last attempt
+    assertArrayEquals(fileContents, lastFileItems.stream().filter(it -> "file_upload".equals(it.name)).findFirst().orElseThrow().content);
+  }
+
+  @Test
+  public void testUploadGivesUpAfterMaxAttempts() throws Exception {
+    final Path testFile = tempDir.resolve("testUploadGivesUpAfterMaxAttempts.test");
+    Files.write(testFile, new byte[]{1});
+    connection = new FZPWUploadConnection(baseTestUrl, FAST_RETRIES);
+
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    connection.login("", "");
+    requestCount.set(0);
+    nextErrorStatuses.addAll(List.of(502, 502, 502, 502));
+
+    final var e = assertThrows(HttpStatusException.class, () -> connection.upload(testFile));
+    assertThat(e.getStatusCode(), is(502));
+    assertThat(requestCount.get(), is(3));
+  }
+
+  @Test
+  public void testUploadDoesNotRetryClientErrors() throws Exception {
+    final Path testFile = tempDir.resolve("testUploadDoesNotRetryClientErrors.test");
+    Files.write(testFile, new byte[]{1});
+    connection = new FZPWUploadConnection(baseTestUrl, FAST_RETRIES);
+
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    connection.login("", "");
+    requestCount.set(0);
+    nextErrorStatuses.add(403);
+
+    final var e = assertThrows(HttpStatusException.class, () -> connection.upload(testFile));
+    assertThat(e.getStatusCode(), is(403));
+    assertThat(requestCount.get(), is(1));
+  }
+
+  @Test
+  public void testRequestListener() throws Exception {
+    final List<Throwable> failures = new CopyOnWriteArrayList<>();
+    final List<Duration> latencies = new CopyOnWriteArrayList<>();
+    connection = new FZPWUploadConnection(baseTestUrl, RetryPolicy.NONE);
+    connection.setRequestListener((latency, failure) -> {
+      latencies.add(latency);
+      failures.add(failure);
+    });
+
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    connection.login("", "");
+    nextErrorStatuses.add(503);
+    final Path testFile = tempDir.resolve("testRequestListener.test");
+    Files.write(testFile, new byte[]{1});
+    assertThrows(HttpStatusException.class, () -> connection.upload(testFile));
+    nextResponse = "https://Freizeitparkweb.de/dcf/User_files/abcdef0123456789.jpg";
+    connection.upload(testFile);
+    connection.logout();
+
+    // only the uploads are passed, not the login and logout
+    assertThat(latencies, hasSize(2));
+    assertThat(latencies.getFirst().isNegative(), is(false));
+    assertThat(((HttpStatusException) failures.get(0)).getStatusCode(), is(503));
+    assertThat(failures.get(1), is(nullValue()));
+  }
+
+  @Test
+  public void testAdaptiveLimitWithMixedFileSizes() throws Exception {
+    final var limiter = new AdaptiveLimiter(1, 4);
+    connection = new FZPWUploadConnection(baseTestUrl, RetryPolicy.NONE);
+    connection.setRequestListener((latency, failure) -> limiter.onSuccess(latency));
+    // the larger files take much longer to send than the server needs for them
+    connection.setRateLimiter(new RateLimiter(0, 300_000));
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    connection.login("", "");
+    nextResponse = "https://Freizeitparkweb.de/dcf/User_files/abcdef0123456789.jpg";
+    responseDelayMillis = 50;
+
+    // each file is larger than the one before, as with SHORTEST_FIRST
+    for (final int size : new int[]{1_000, 60_000, 120_000, 180_000}) {
+      final Path testFile = tempDir.resolve("testAdaptiveLimitWithMixedFileSizes" + size + ".test");
+      Files.write(testFile, new byte[size]);
+      connection.upload(testFile);
+    }
+
+    // the latency of the server stays flat, so the limit is raised after one and after two more uploads
+    assertThat(limiter.getLimit(), is(3));
+  }
+
+  @Test
+  public void testRequestRateLimit() throws Exception {
+    connection.setRateLimiter(new RateLimiter(20, 0));
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    final long start = System.nanoTime();
+    connection.login("", "");
+    connection.logout();
+    connection.login("", "");
+    connection.logout();
+    assertThat(requestCount.get(), is(4));
+    // the first request is sent at once, the others 50ms after each other
+    assertThat(Duration.ofNanos(System.nanoTime() - start).toMillis(), greaterThanOrEqualTo(140L));
+  }
+
+  @Test
+  public void testRateLimitedUploadMayTakeLongerThanTheTimeout() throws Exception {
+    connection = new FZPWUploadConnection(baseTestUrl, RetryPolicy.NONE, null, Duration.ofMillis(200), Duration.ofMillis(200));
+    // about 600ms for the body, three times the timeouts without the byte rate
+    connection.setRateLimiter(new RateLimiter(0, 30_000));
+    final byte[] fileContents = new byte[20_000];
+    new Random(2).nextBytes(fileContents);
+    final Path testFile = tempDir.resolve("testRateLimitedUploadMayTakeLongerThanTheTimeout.test");
+    Files.write(testFile, fileContents);
+
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    connection.login("", "");
+    nextResponse = "https://Freizeitparkweb.de/dcf/User_files/abcdef0123456789.jpg";
+    final long start = System.nanoTime();
+    assertThat(connection.upload(testFile), is(nextResponse));
+    assertThat(Duration.ofNanos(System.nanoTime() - start).toMillis(), greaterThanOrEqualTo(400L));
+    assertArrayEquals(fileContents, lastFileItems.stream().filter(it -> "file_upload".equals(it.name)).findFirst().orElseThrow().content);
+  }
+
+  @Test
+  public void testTimeoutOfCallerAbortsUpload() throws Exception {
+    final var aborted = new CountDownLatch(1);
+    final List<Throwable> failures = new CopyOnWriteArrayList<>();
+    connection.setRequestListener((_, failure) -> {
+      if (failure != null) {
+        failures.add(failure);
+        aborted.countDown();
+      }
+    });
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    connection.login("", "");
+    final Path testFile = tempDir.resolve("testTimeoutOfCallerAbortsUpload.test");
+    Files.write(testFile, new byte[]{1});
+    responseDelayMillis = 5000;
+
+    final CompletableFuture<String> upload = connection.uploadAsync(testFile).orTimeout(100, TimeUnit.MILLISECONDS);
+    final var e = assertThrows(ExecutionException.class, upload::get);
+    assertThat(e.getCause(), instanceOf(TimeoutException.class));
+    // the request is aborted long before the server answers and it is not sent again
+    assertTrue(aborted.await(2, TimeUnit.SECONDS));
+    assertThat(failures.getFirst(), instanceOf(CancellationException.class));
+    assertThat(requestCount.get(), is(2));
+  }
+
+  @Test
+  public void testStoredSessionIsUsed() throws Exception {
+    final var sessionStore = new SessionStore(tempDir.resolve("testStoredSessionIsUsed.txt"));
+    final var cookie = new HttpCookie("DCForumSessionID", "stored");
+    cookie.setPath("/");
+    cookie.setMaxAge(3600);
+    sessionStore.save("Test", List.of(cookie));
+    connection = new FZPWUploadConnection(baseTestUrl, RetryPolicy.DEFAULT, sessionStore);
+
+    nextResponse = "<a href=\"dcboard.cgi?az=logout\">Logout</a>";
+    assertThat(connection.login("Test", "password123"), is(LoginStatus.LOGGED_IN));
+    assertThat(requestCount.get(), is(1));
+    assertThat(lastRequestParameters.get("Username"), is(nullValue()));
+    assertThat(lastCookies.getFirst().getValue(), is("stored"));
+
+    connection.disconnect();
+    assertThat(sessionStore.load("Test"), hasSize(1));
+
+    nextResponse = "Der User wurde auf diesem Rechner ausgeloggt...";
+    connection.logout();
+    assertThat(sessionStore.load("Test"), empty());
+  }
+
+  @Test
+  public void testInvalidStoredSessionLogsIn() throws Exception {
+    final var sessionStore = new SessionStore(tempDir.resolve("testInvalidStoredSessionLogsIn.txt"));
+    sessionStore.save("Test", List.of(new HttpCookie("DCForumSessionID", "expired")));
+    connection = new FZPWUploadConnection(baseTestUrl, RetryPolicy.DEFAULT, sessionStore);
+
+    nextResponse = "Seite wird geladen, einen Moment bitte...";
+    assertThat(connection.login("Test", "password123"), is(LoginStatus.LOGGED_IN));
+    assertThat(requestCount.get(), is(2));
+    assertThat(lastRequestParameters.get("Username"), is("Test"));
+  }
+
   @Test
   public void testUploadFindsNoURL() throws Exception {
     final Path testFile = tempDir.resolve("testUploadFindsNoURL.test");
@@ -185,6 +447,7 @@ public class FZPWUploadConnectionTest {
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      requestCount.incrementAndGet();
       lastCookies = Optional.ofNullable(req.getCookies()).map(List::of).orElse(List.of());
       if (req.getContentType() != null && req.getContentType().startsWith("multipart/form-data")) {
         try {
@@ -208,6 +471,18 @@ public class FZPWUploadConnectionTest {
         lastRequestParameters.put(cur.getKey(), cur.getValue()[0]);
       }
 
+      if (responseDelayMillis > 0) {
+        try {
+          Thread.sleep(responseDelayMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      final Integer errorStatus = nextErrorStatuses.poll();
+      if (errorStatus != null) {
+        resp.sendError(errorStatus);
+        return;
+      }
       resp.getWriter().append(nextResponse);
       resp.getWriter().close();
     }
@@ -0,0 +1,101 @@
+package de.achterblog.fzpwuploader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import de.achterblog.fzpwuploader.UploadBatchTest.FakeConnection;
+import de.achterblog.fzpwuploader.UploadBatchTest.RecordingCallback;
+import de.achterblog.fzpwuploader.UploadConnection.LoginStatus;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class HotFolderTest {
+  private static final Duration QUIET_PERIOD = Duration.ofMillis(300);
+
+  private final FakeConnection connection = new FakeConnection();
+  private final RecordingCallback callback = new RecordingCallback();
+  private HotFolder hotFolder;
+  private Thread watcher;
+
+  @TempDir
+  public Path folder;
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    if (hotFolder != null) {
+      hotFolder.close();
+      watcher.join(5000);
+    }
+  }
+
+  @Test
+  public void testUploadsExistingAndNewImages() throws Exception {
+    Files.write(folder.resolve("old.jpg"), new byte[]{1});
+    Files.write(folder.resolve("done.jpg"), new byte[]{1});
+    Files.writeString(folder.resolve("done.jpg.url"), "https://example.com/done.jpg\n");
+    Files.writeString(folder.resolve("notes.txt"), "not an image");
+    start();
+
+    awaitFile(folder.resolve("old.jpg.url"));
+    assertThat(Files.readString(folder.resolve("old.jpg.url")), is("https://example.com/old.jpg\n"));
+
+    // the file is written in two parts, it must only be uploaded once it is complete
+    final Path image = folder.resolve("new.jpg");
+    Files.write(image, new byte[]{1, 2});
+    Thread.sleep(QUIET_PERIOD.toMillis() / 3);
+    Files.write(image, new byte[]{3, 4}, StandardOpenOption.APPEND);
+    awaitFile(folder.resolve("new.jpg.url"));
+
+    assertThat(callback.uploaded, containsInAnyOrder(folder.resolve("old.jpg"), image));
+    assertThat(connection.uploadCount.get(), is(2));
+    assertThat(connection.loginCount.get(), is(1));
+    assertThat(Files.exists(folder.resolve("notes.txt.url")), is(false));
+
+    hotFolder.close();
+    watcher.join(5000);
+    assertThat(watcher.isAlive(), is(false));
+    assertThat(connection.getLoginStatus(), is(not(LoginStatus.LOGGED_IN)));
+  }
+
+  @Test
+  public void testFailureIsWrittenAndRenewsLogin() throws Exception {
+    start();
+    final Path broken = folder.resolve("broken.jpg");
+    connection.failing.add(broken);
+    Files.write(broken, new byte[]{1});
+    awaitFile(folder.resolve("broken.jpg.failed"));
+    assertThat(Files.readString(folder.resolve("broken.jpg.failed"), StandardCharsets.UTF_8), containsString("Could not find URL"));
+    assertThat(callback.failed, is(List.of(broken)));
+
+    Files.write(folder.resolve("next.jpg"), new byte[]{1});
+    awaitFile(folder.resolve("next.jpg.url"));
+    assertThat(connection.loginCount.get(), is(2));
+  }
+
+  private void start() throws IOException {
+    final var batch = new UploadBatch("user", "password", callback).withRetryPolicy(RetryPolicy.NONE);
+    hotFolder = HotFolder.watch(batch, List.of(folder), QUIET_PERIOD, () -> connection);
+    watcher = new Thread(hotFolder::run, "hot-folder");
+    watcher.start();
+  }
+
+  private static void awaitFile(Path file) throws InterruptedException {
+    final long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+    while (!Files.exists(file)) {
+      if (System.nanoTime() > deadline) {
+        throw new AssertionError("Timeout while waiting for " + file);
+      }
+      Thread.sleep(20);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package de.achterblog.fzpwuploader;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ImageResizerTest {
+  @Test
+  public void testLargeImageIsDownscaled(@TempDir final Path tempDir) throws IOException {
+    final Path file = tempDir.resolve("large.jpg");
+    Files.write(file, jpeg(2400, 1200));
+
+    final Optional<ByteBuffer> resized = new ImageResizer(400, 0.8f).resize(file);
+
+    assertThat(resized.isPresent(), is(true));
+    assertThat((long) resized.get().remaining(), is(lessThan(Files.size(file))));
+    final BufferedImage image = decode(resized.get());
+    assertThat(image.getWidth(), is(400));
+    assertThat(image.getHeight(), is(200));
+  }
+
+  @Test
+  public void testSmallImageIsKept(@TempDir final Path tempDir) throws IOException {
+    final Path file = tempDir.resolve("small.jpg");
+    Files.write(file, jpeg(400, 300));
+
+    assertThat(new ImageResizer(400, 0.8f).resize(file), is(Optional.empty()));
+  }
+
+  @Test
+  public void testOtherFilesAreKept(@TempDir final Path tempDir) throws IOException {
+    final Path file = tempDir.resolve("text.jpg");
+    Files.writeString(file, "no image");
+
+    assertThat(new ImageResizer().resize(file), is(Optional.empty()));
+    assertThrows(IOException.class, () -> new ImageResizer().resize(tempDir.resolve("missing.jpg")));
+  }
+
+  @Test
+  public void testOrientationIsApplied(@TempDir final Path tempDir) throws IOException {
+    final Path file = tempDir.resolve("portrait.jpg");
+    // taken with the camera turned clockwise, the pixels are landscape
+    Files.write(file, withExif(jpeg(800, 400), exif(ByteOrder.BIG_ENDIAN, 6)));
+
+    final BufferedImage image = decode(new ImageResizer(200, 0.8f).resize(file).orElseThrow());
+
+    assertThat(image.getWidth(), is(100));
+    assertThat(image.getHeight(), is(200));
+  }
+
+  @Test
+  public void testInvalidSettings() {
+    assertThrows(IllegalArgumentException.class, () -> new ImageResizer(0, 0.8f));
+    assertThrows(IllegalArgumentException.class, () -> new ImageResizer(100, 0));
+    assertThrows(IllegalArgumentException.class, () -> new ImageResizer(100, 1.5f));
+  }
+
+  /** A JPEG with noise, so it does not compress well, like a photo */
+  static byte[] jpeg(int width, int height) throws IOException {
+    final var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    final var random = new Random(42);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        image.setRGB(x, y, random.nextInt(0x1000000));
+      }
+    }
+    final var out = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpeg", out);
+    return out.toByteArray();
+  }
+
+  /** The content of an APP1 segment with only the orientation */
+  private static byte[] exif(ByteOrder order, int orientation) {
+    final ByteBuffer buffer = ByteBuffer.allocate(6 + 8 + 2 + 12 + 4).order(order);
+    buffer.put("Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+    buffer.put(order == ByteOrder.LITTLE_ENDIAN ? "II".getBytes(StandardCharsets.US_ASCII) : "MM".getBytes(StandardCharsets.US_ASCII));
+    buffer.putShort((short) 42).putInt(8);
+    buffer.putShort((short) 1);
+    buffer.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+    buffer.putInt(0);
+    return buffer.array();
+  }
+
+  /** Insert the APP1 segment after the APP0 segment of the JPEG */
+  static byte[] withExif(byte[] jpeg, byte[] exif) {
+    final int app0End = 4 + (((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF));
+    final var out = new ByteArrayOutputStream();
+    out.write(jpeg, 0, app0End);
+    out.write(0xFF);
+    out.write(0xE1);
+    out.write((exif.length + 2) >> 8);
+    out.write((exif.length + 2) & 0xFF);
+    out.writeBytes(exif);
+    out.write(jpeg, app0End, jpeg.length - app0End);
+    return out.toByteArray();
+  }
+
+  private static BufferedImage decode(ByteBuffer jpeg) throws IOException {
+    return ImageIO.read(new ByteArrayInputStream(jpeg.array(), jpeg.arrayOffset() + jpeg.position(), jpeg.remaining()));
+  }
+}
@@ -0,0 +1,111 @@
+package de.achterblog.fzpwuploader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import de.achterblog.fzpwuploader.UploadBatch.UploadBatchCallback;
+import de.achterblog.fzpwuploader.UploadProgress.FileProgress;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ProgressTrackerTest {
+  private final AtomicLong now = new AtomicLong(0);
+  private final List<UploadProgress> reports = new CopyOnWriteArrayList<>();
+  private final UploadBatchCallback callback = new UploadBatchCallback() {
+    @Override
+    public void uploaded(Path uploaded, String url) {
+    }
+
+    @Override
+    public void failed(Path uploaded, Throwable cause) {
+    }
+
+    @Override
+    public void progress(UploadProgress progress) {
+      reports.add(progress);
+    }
+  };
+
+  @TempDir
+  public Path tempDir;
+
+  @Test
+  public void testReportsAreCoalesced() throws Exception {
+    final Path a = file("a.jpg", 1000);
+    final Path b = file("b.jpg", 3000);
+    final var tracker = new ProgressTracker(callback, List.of(a, b), now::get);
+
+    tracker.listenerFor(a).accept(500);
+    assertThat(reports, hasSize(1));
+    assertThat(reports.getLast().sentBytes(), is(500L));
+    assertThat(reports.getLast().remaining(), is(Optional.empty()));
+
+    advance(100);
+    // the headers of the request do not count
+    tracker.listenerFor(a).accept(1200);
+    assertThat(reports, hasSize(1));
+
+    advance(200);
+    tracker.listenerFor(b).accept(1000);
+    assertThat(reports, hasSize(2));
+    final UploadProgress progress = reports.getLast();
+    assertThat(progress.sentBytes(), is(2000L));
+    assertThat(progress.totalBytes(), is(4000L));
+    assertThat(progress.fraction(), is(0.5));
+    // 2000 bytes in 300ms
+    assertThat(progress.bytesPerSecond(), closeTo(6666.7, 0.1));
+    assertThat(progress.remaining(), is(Optional.of(Duration.ofMillis(300))));
+    assertThat(progress.files(), containsInAnyOrder(new FileProgress(a, 1000, 1000), new FileProgress(b, 1000, 3000)));
+    assertThat(progress.toText(), is("50% of 3.9 kB, 6.5 kB/s, 0s left"));
+  }
+
+  @Test
+  public void testSmallerContentIsScaledToTheFile() throws Exception {
+    final Path a = file("a.jpg", 4000);
+    final var tracker = new ProgressTracker(callback, List.of(a), now::get);
+
+    // a downscaled image of 400 bytes, the first half of it was sent
+    tracker.listenerFor(a, 400).accept(200);
+
+    assertThat(reports.getLast().sentBytes(), is(2000L));
+    assertThat(reports.getLast().files(), contains(new FileProgress(a, 2000, 4000)));
+  }
+
+  @Test
+  public void testRetryAndFinish() throws Exception {
+    final Path a = file("a.jpg", 1000);
+    final var tracker = new ProgressTracker(callback, List.of(a, tempDir.resolve("missing.jpg")), now::get);
+
+    tracker.listenerFor(a).accept(800);
+    advance(100);
+    // the second attempt starts again
+    tracker.listenerFor(a).accept(200);
+    tracker.finished(a);
+    tracker.finished(tempDir.resolve("missing.jpg"));
+    assertThat(reports, hasSize(1));
+
+    tracker.finish();
+    final UploadProgress progress = reports.getLast();
+    assertThat(progress.files(), is(empty()));
+    assertThat(progress.fraction(), is(1.0));
+    assertThat(progress.bytesPerSecond(), closeTo(10000, 0.1));
+  }
+
+  private Path file(String name, int size) throws Exception {
+    return Files.write(tempDir.resolve(name), new byte[size]);
+  }
+
+  private void advance(long millis) {
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+}
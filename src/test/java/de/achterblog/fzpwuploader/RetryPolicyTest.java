@@ -0,0 +1,38 @@
+package de.achterblog.fzpwuploader;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.http.HttpConnectTimeoutException;
+import java.time.Duration;
+
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class RetryPolicyTest {
+  private final RetryPolicy policy = RetryPolicy.DEFAULT.withMaxAttempts(4);
+
+  @Test
+  public void testShouldRetry() {
+    assertThat(policy.shouldRetry(1, new HttpStatusException(503)), is(true));
+    assertThat(policy.shouldRetry(1, new HttpStatusException(404)), is(false));
+    assertThat(policy.shouldRetry(1, new HttpConnectTimeoutException("timeout")), is(true));
+    assertThat(policy.shouldRetry(1, new FileNotFoundException("missing")), is(false));
+    assertThat(policy.shouldRetry(1, new IOException("something")), is(false));
+    assertThat(policy.shouldRetry(1, new UploadException("Could not find URL in the response")), is(false));
+    assertThat(policy.shouldRetry(3, new HttpStatusException(503)), is(true));
+    assertThat(policy.shouldRetry(4, new HttpStatusException(503)), is(false));
+    assertThat(RetryPolicy.NONE.shouldRetry(1, new HttpStatusException(503)), is(false));
+  }
+
+  @RepeatedTest(20)
+  public void testDelayAfter() {
+    final var p = policy.withInitialDelay(Duration.ofMillis(100)).withMaxDelay(Duration.ofMillis(300));
+    assertThat(p.delayAfter(1).toMillis(), is(both(greaterThanOrEqualTo(0L)).and(lessThanOrEqualTo(100L))));
+    assertThat(p.delayAfter(2).toMillis(), lessThanOrEqualTo(200L));
+    assertThat(p.delayAfter(3).toMillis(), lessThanOrEqualTo(300L));
+    assertThat(p.delayAfter(100).toMillis(), lessThanOrEqualTo(300L));
+  }
+}
@@ -0,0 +1,107 @@
+package de.achterblog.fzpwuploader;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import de.achterblog.fzpwuploader.UploadBatchTest.FakeConnection;
+import de.achterblog.fzpwuploader.UploadConnection.LoginStatus;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SessionPoolTest {
+  private final List<FakeConnection> connections = new CopyOnWriteArrayList<>();
+
+  @Test
+  public void testSessionsAreCreatedLazily() throws Exception {
+    final SessionPool pool = newPool(3, 2);
+    assertThat(pool.login("user", "password"), is(LoginStatus.LOGGED_IN));
+    assertThat(connections.size(), is(1));
+
+    final List<Path> files = UploadBatchTest.files(6);
+    files.forEach(it -> connections.getFirst().delays.put(it, 100L));
+    final List<CompletableFuture<String>> uploads = files.stream().map(pool::uploadAsync).toList();
+    assertThat(uploads.stream().map(CompletableFuture::join).toList(),
+               is(files.stream().map(it -> "https://example.com/" + it.getFileName()).toList()));
+
+    assertThat(connections.size(), is(3));
+    assertThat(pool.getSessionCount(), is(3));
+    for (FakeConnection con : connections) {
+      assertThat(con.loginCount.get(), is(1));
+      assertThat(con.maxConcurrentUploads.get(), lessThanOrEqualTo(2));
+    }
+  }
+
+  @Test
+  public void testSmallBatchUsesOneSession() throws Exception {
+    final SessionPool pool = newPool(3, 2);
+    pool.login("user", "password");
+    for (Path file : UploadBatchTest.files(4)) {
+      pool.uploadAsync(file).join();
+    }
+    assertThat(connections.size(), is(1));
+  }
+
+  @Test
+  public void testUnhealthySessionIsReplaced() throws Exception {
+    final SessionPool pool = newPool(1, 2);
+    pool.login("user", "password");
+    final List<Path> files = UploadBatchTest.files(2);
+    connections.getFirst().failing.add(files.getFirst());
+
+    final var e = assertThrows(CompletionException.class, () -> pool.uploadAsync(files.getFirst()).join());
+    assertThat(e.getCause(), instanceOf(UploadException.class));
+    assertThat(connections.getFirst().getLoginStatus(), is(LoginStatus.DISCONNECTED));
+
+    assertThat(pool.uploadAsync(files.get(1)).join(), is("https://example.com/file1.jpg"));
+    assertThat(connections.size(), is(2));
+    assertThat(pool.getSessionCount(), is(1));
+  }
+
+  @Test
+  public void testRefusedLogin() throws Exception {
+    final SessionPool pool = new SessionPool(() -> {
+      final var con = new FakeConnection();
+      con.loginResult = LoginStatus.REFUSED;
+      connections.add(con);
+      return con;
+    }, 2, 2);
+    assertThat(pool.login("user", "password"), is(LoginStatus.REFUSED));
+    assertThat(pool.getSessionCount(), is(0));
+    assertThrows(IllegalStateException.class, () -> pool.uploadAsync(Path.of("file.jpg")));
+  }
+
+  @Test
+  public void testLogoutLogsOutAllSessions() throws Exception {
+    final SessionPool pool = newPool(2, 1);
+    pool.login("user", "password");
+    final List<Path> files = UploadBatchTest.files(2);
+    files.forEach(it -> connections.getFirst().delays.put(it, 50L));
+    CompletableFuture.allOf(files.stream().map(pool::uploadAsync).toArray(CompletableFuture[]::new)).join();
+    assertThat(connections.size(), is(2));
+
+    assertThat(pool.logout(), is(true));
+    assertThat(pool.getLoginStatus(), is(LoginStatus.LOGGED_OUT));
+    assertThat(pool.getSessionCount(), is(0));
+    for (FakeConnection con : connections) {
+      assertThat(con.getLoginStatus(), is(LoginStatus.DISCONNECTED));
+    }
+  }
+
+  private SessionPool newPool(int maxSessions, int uploadsPerSession) {
+    return new SessionPool(() -> {
+      final var con = new FakeConnection();
+      if (!connections.isEmpty()) {
+        con.delays.putAll(connections.getFirst().delays);
+      }
+      connections.add(con);
+      return con;
+    }, maxSessions, uploadsPerSession);
+  }
+}
@@ -0,0 +1,87 @@
+package de.achterblog.fzpwuploader;
+
+import java.net.HttpCookie;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SessionStoreTest {
+  private static final Instant NOW = Instant.parse("2026-01-01T12:00:00Z");
+
+  @TempDir
+  public Path tempDir;
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    final var store = new SessionStore(tempDir.resolve("dir/session.txt"), Clock.fixed(NOW, ZoneOffset.UTC));
+    final var cookie = new HttpCookie("DCForumSessionID", "%%abc\tdef");
+    cookie.setPath("/");
+    cookie.setMaxAge(3600);
+    store.save("Test User", List.of(cookie, new HttpCookie("other", "value")));
+
+    final List<HttpCookie> cookies = store.load("Test User");
+    assertThat(cookies, hasSize(2));
+    assertThat(cookies.getFirst().getName(), is("DCForumSessionID"));
+    assertThat(cookies.getFirst().getValue(), is("%%abc\tdef"));
+    assertThat(cookies.getFirst().getPath(), is("/"));
+    assertThat(cookies.getFirst().getMaxAge(), is(3600L));
+    assertThat(cookies.get(1).getMaxAge(), is(-1L));
+  }
+
+  @Test
+  public void testOtherUser() throws Exception {
+    final var store = new SessionStore(tempDir.resolve("session.txt"));
+    store.save("user", List.of(new HttpCookie("name", "value")));
+    assertThat(store.load("other"), empty());
+  }
+
+  @Test
+  public void testExpiredCookiesAreNotLoaded() throws Exception {
+    final Path file = tempDir.resolve("session.txt");
+    final var cookie = new HttpCookie("name", "value");
+    cookie.setMaxAge(60);
+    new SessionStore(file, Clock.fixed(NOW, ZoneOffset.UTC)).save("user", List.of(cookie));
+
+    assertThat(new SessionStore(file, Clock.fixed(NOW.plusSeconds(59), ZoneOffset.UTC)).load("user"), hasSize(1));
+    assertThat(new SessionStore(file, Clock.fixed(NOW.plusSeconds(60), ZoneOffset.UTC)).load("user"), empty());
+  }
+
+  @Test
+  public void testSavingAgainDoesNotExtendTheExpiry() throws Exception {
+    final var now = new AtomicReference<>(NOW);
+    final var store = new SessionStore(tempDir.resolve("session.txt"), now::get);
+    final var cookie = new HttpCookie("name", "value");
+    cookie.setMaxAge(60);
+    store.save("user", List.of(cookie));
+
+    now.set(NOW.plusSeconds(30));
+    store.save("user", List.of(cookie));
+    final List<HttpCookie> loaded = store.load("user");
+    assertThat(loaded.getFirst().getMaxAge(), is(30L));
+
+    now.set(NOW.plusSeconds(50));
+    store.save("user", loaded);
+    assertThat(store.load("user").getFirst().getMaxAge(), is(10L));
+
+    now.set(NOW.plusSeconds(60));
+    assertThat(store.load("user"), empty());
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    final var store = new SessionStore(tempDir.resolve("session.txt"));
+    assertThat(store.load("user"), empty());
+    store.save("user", List.of(new HttpCookie("name", "value")));
+    store.clear();
+    assertThat(store.load("user"), empty());
+  }
+}
@@ -0,0 +1,498 @@
+package de.achterblog.fzpwuploader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import de.achterblog.fzpwuploader.UploadBatch.SchedulingPolicy;
+import de.achterblog.fzpwuploader.UploadBatch.UploadBatchCallback;
+import de.achterblog.util.AdaptiveLimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UploadBatchTest {
+  private final RecordingCallback callback = new RecordingCallback();
+
+  @Test
+  public void testUploadKeepsOrder() {
+    final var connection = new FakeConnection();
+    final List<Path> files = files(6);
+    // the first files are the slowest, so they finish last
+    for (int i = 0; i < files.size(); i++) {
+      connection.delays.put(files.get(i), 60L * (files.size() - i));
+    }
+
+    final String result = new UploadBatch("user", "password", callback).withParallelUploads(3).upload(files, () -> connection);
+
+    assertThat(result, is("""
+                            https://example.com/file0.jpg
+                            file0.jpg
+
+                            https://example.com/file1.jpg
+                            file1.jpg
+
+                            https://example.com/file2.jpg
+                            file2.jpg
+
+                            https://example.com/file3.jpg
+                            file3.jpg
+
+                            https://example.com/file4.jpg
+                            file4.jpg
+
+                            https://example.com/file5.jpg
+                            file5.jpg
+
+                            """));
+    assertThat(callback.uploaded, containsInAnyOrder(files.toArray()));
+    assertThat(connection.getLoginStatus(), is(UploadConnection.LoginStatus.DISCONNECTED));
+  }
+
+  @Test
+  public void testParallelUploadsAreLimited() {
+    final var connection = new FakeConnection();
+    final List<Path> files = files(10);
+    files.forEach(it -> connection.delays.put(it, 50L));
+
+    new UploadBatch("user", "password", callback).withParallelUploads(3).upload(files, () -> connection);
+
+    assertThat(connection.maxConcurrentUploads.get(), is(3));
+    assertThat(callback.uploaded, hasSize(10));
+  }
+
+  @Test
+  public void testCallbacksRunOnVirtualThreads() {
+    final var connection = new FakeConnection();
+    final List<Path> files = files(5);
+
+    new UploadBatch("user", "password", callback).upload(files, () -> connection);
+
+    assertThat(callback.uploaded, hasSize(5));
+    assertThat(callback.virtualThreadCallbacks.get(), is(5));
+  }
+
+  @Test
+  public void testFailedUpload() {
+    final var connection = new FakeConnection();
+    final List<Path> files = files(2);
+    connection.failing.add(files.getFirst());
+
+    final String result = new UploadBatch("user", "password", callback).upload(files, () -> connection);
+
+    assertThat(result, startsWith("Failed to upload file file0.jpg (UploadException: Could not find URL in the response)"));
+    assertThat(result, containsString("https://example.com/file1.jpg"));
+    assertThat(callback.failed, contains(files.getFirst()));
+    assertThat(callback.uploaded, contains(files.get(1)));
+  }
+
+  @Test
+  public void testUploadResults() {
+    final var connection = new FakeConnection();
+    final List<Path> files = files(3);
+    connection.delays.put(files.getFirst(), 100L);
+    connection.failing.add(files.get(1));
+
+    final List<UploadResult> results = new UploadBatch("user", "password", callback).uploadResultsAsync(files, () -> connection).join();
+
+    assertThat(results.stream().map(UploadResult::file).toList(), is(files));
+    assertThat(results.get(0).url(), is("https://example.com/file0.jpg"));
+    assertThat(results.get(1).isSuccess(), is(false));
+    assertThat(results.get(1).error(), instanceOf(UploadException.class));
+    assertThat(results.get(2).url(), is("https://example.com/file2.jpg"));
+    // the callback got the fast upload before the slow one
+    assertThat(callback.uploaded, contains(files.get(2), files.getFirst()));
+    assertThat(callback.urls.get(files.get(2)), is("https://example.com/file2.jpg"));
+  }
+
+  @Test
+  public void testUploadResultsLoginRefused() {
+    final var connection = new FakeConnection();
+    connection.loginResult = UploadConnection.LoginStatus.REFUSED;
+
+    final var future = new UploadBatch("user", "password", callback).uploadResultsAsync(files(1), () -> connection);
+
+    final var e = assertThrows(CompletionException.class, future::join);
+    assertThat(e.getCause(), instanceOf(UploadException.class));
+    assertThat(connection.getLoginStatus(), is(UploadConnection.LoginStatus.DISCONNECTED));
+  }
+
+  @Test
+  public void testResumeWithJournal(@TempDir Path tempDir) throws IOException {
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      files.add(Files.writeString(tempDir.resolve("file" + i + ".jpg"), "content" + i));
+    }
+    final Path journalFile = tempDir.resolve("journal.txt");
+
+    final var connection = new FakeConnection();
+    connection.failing.add(files.get(1));
+    try (var journal = UploadJournal.open(journalFile)) {
+      new UploadBatch("user", "password", callback).withJournal(journal).upload(files, () -> connection);
+    }
+    assertThat(connection.uploadCount.get(), is(3));
+
+    final var resumed = new FakeConnection();
+    final var resumedCallback = new RecordingCallback();
+    try (var journal = UploadJournal.open(journalFile)) {
+      final List<UploadResult> results = new UploadBatch("user", "password", resumedCallback).withJournal(journal)
+        .uploadResultsAsync(files, () -> resumed).join();
+      assertThat(results.stream().allMatch(UploadResult::isSuccess), is(true));
+      assertThat(results.getFirst().url(), is("https://example.com/file0.jpg"));
+    }
+    assertThat(resumed.uploadCount.get(), is(1));
+    assertThat(resumedCallback.uploaded, containsInAnyOrder(files.toArray()));
+  }
+
+  @Test
+  public void testCachedContentIsNotUploaded(@TempDir Path tempDir) throws IOException {
+    final Path uploaded = Files.writeString(tempDir.resolve("uploaded.jpg"), "content");
+    final Path copy = Files.writeString(tempDir.resolve("copy.jpg"), "content");
+    final Path other = Files.writeString(tempDir.resolve("other.jpg"), "other");
+    final String cachedUrl = "https://Freizeitparkweb.de/dcf/User_files/abcdef.jpg";
+
+    final var connection = new FakeConnection();
+    try (var cache = UploadCache.open(tempDir.resolve("cache.txt"))) {
+      cache.record(uploaded, cachedUrl);
+      final List<UploadResult> results = new UploadBatch("user", "password", callback).withCache(cache)
+        .uploadResultsAsync(List.of(copy, other), () -> connection).join();
+
+      assertThat(results.get(0).url(), is(cachedUrl));
+      assertThat(results.get(1).url(), is("https://example.com/other.jpg"));
+    }
+    assertThat(connection.uploadCount.get(), is(1));
+  }
+
+  @Test
+  public void testChunksWithNewLogins() {
+    final List<FakeConnection> connections = new CopyOnWriteArrayList<>();
+    final List<Path> files = files(7);
+
+    final List<UploadResult> results = new UploadBatch("user", "password", callback).withChunkSize(3)
+      .uploadResultsAsync(files, () -> {
+        final var connection = new FakeConnection();
+        connections.add(connection);
+        return connection;
+      }).join();
+
+    assertThat(results.stream().map(UploadResult::file).toList(), is(files));
+    assertThat(results.stream().allMatch(UploadResult::isSuccess), is(true));
+    assertThat(connections, hasSize(3));
+    assertThat(connections.stream().map(it -> it.uploadCount.get()).toList(), contains(3, 3, 1));
+    assertThat(connections.stream().allMatch(it -> it.getLoginStatus() == UploadConnection.LoginStatus.DISCONNECTED), is(true));
+  }
+
+  @Test
+  public void testNextChunkLogsInWhileTheCurrentOneUploads() {
+    final var loggedInSessions = new AtomicInteger();
+    final var maxLoggedInSessions = new AtomicInteger();
+    final List<FakeConnection> connections = new CopyOnWriteArrayList<>();
+    final List<Path> files = files(8);
+
+    final List<UploadResult> results = new UploadBatch("user", "password", callback).withChunkSize(2)
+      .uploadResultsAsync(files, () -> {
+        final var connection = new FakeConnection();
+        files.forEach(it -> connection.delays.put(it, 50L));
+        connection.loggedInSessions = loggedInSessions;
+        connection.maxLoggedInSessions = maxLoggedInSessions;
+        connections.add(connection);
+        return connection;
+      }).join();
+
+    assertThat(results.stream().allMatch(UploadResult::isSuccess), is(true));
+    assertThat(connections, hasSize(4));
+    // the next session is logged in while the current one uploads, but the later ones are not logged in yet
+    assertThat(maxLoggedInSessions.get(), is(2));
+    assertThat(loggedInSessions.get(), is(0));
+  }
+
+  @Test
+  public void testChunksWithSameLogin() {
+    final var connection = new FakeConnection();
+    final List<Path> files = files(7);
+    files.forEach(it -> connection.delays.put(it, 10L));
+
+    final List<UploadResult> results = new UploadBatch("user", "password", callback).withChunkSize(3).withReuseLogin(true)
+      .uploadResultsAsync(files, () -> connection).join();
+
+    assertThat(results.stream().map(UploadResult::url).toList(), everyItem(startsWith("https://example.com/file")));
+    assertThat(connection.loginCount.get(), is(1));
+    assertThat(connection.uploadCount.get(), is(7));
+    // one chunk after the other
+    assertThat(connection.maxConcurrentUploads.get(), lessThanOrEqualTo(3));
+  }
+
+  @Test
+  public void testLaterChunkLoginRefused() {
+    final List<FakeConnection> connections = new CopyOnWriteArrayList<>();
+    final List<Path> files = files(5);
+
+    final List<UploadResult> results = new UploadBatch("user", "password", callback).withChunkSize(2)
+      .uploadResultsAsync(files, () -> {
+        final var connection = new FakeConnection();
+        if (!connections.isEmpty()) {
+          connection.loginResult = UploadConnection.LoginStatus.REFUSED;
+        }
+        connections.add(connection);
+        return connection;
+      }).join();
+
+    assertThat(results.stream().map(UploadResult::isSuccess).toList(), contains(true, true, false, false, false));
+    assertThat(callback.failed, contains(files.subList(2, 5).toArray()));
+    // the third chunk does not even try to log in after the second login was refused
+    assertThat(connections.get(2).loginCount.get(), is(0));
+  }
+
+  @Test
+  public void testLoginRefused() {
+    final var connection = new FakeConnection();
+    connection.loginResult = UploadConnection.LoginStatus.REFUSED;
+
+    final String result = new UploadBatch("user", "password", callback).upload(files(1), () -> connection);
+
+    assertThat(result, is("Failed to login user user: REFUSED"));
+    assertThat(connection.uploadCount.get(), is(0));
+  }
+
+  @Test
+  public void testInvalidParallelUploads() {
+    final var batch = new UploadBatch("user", "password", callback);
+    assertThrows(IllegalArgumentException.class, () -> batch.withParallelUploads(0));
+  }
+
+  @Test
+  public void testAdaptiveLimiterReplacesParallelUploads() {
+    final var connection = new FakeConnection();
+    final List<Path> files = files(6);
+    files.forEach(it -> connection.delays.put(it, 30L));
+    final var limiter = new AdaptiveLimiter(1, 4);
+
+    new UploadBatch("user", "password", callback).withParallelUploads(6).withAdaptiveLimiter(limiter).upload(files, () -> connection);
+    assertThat(callback.uploaded, hasSize(6));
+    assertThat(connection.maxConcurrentUploads.get(), is(1));
+  }
+
+  @ParameterizedTest
+  @EnumSource(SchedulingPolicy.class)
+  public void testSchedulingPolicy(SchedulingPolicy policy, @TempDir Path tempDir) throws IOException {
+    final Path small = Files.write(tempDir.resolve("small.jpg"), new byte[1]);
+    final Path large = Files.write(tempDir.resolve("large.jpg"), new byte[100]);
+    final Path medium = Files.write(tempDir.resolve("medium.jpg"), new byte[10]);
+    final List<Path> files = List.of(small, large, medium);
+    final var connection = new FakeConnection();
+
+    final List<UploadResult> results = new UploadBatch("user", "password", callback).withParallelUploads(1).withChunkSize(2)
+      .withSchedulingPolicy(policy).uploadResultsAsync(files, () -> connection).join();
+
+    assertThat(connection.uploadOrder, is(switch (policy) {
+      case FIFO -> files;
+      case SHORTEST_FIRST -> List.of(small, medium, large);
+      case LARGEST_FIRST -> List.of(large, medium, small);
+    }));
+    assertThat(results.stream().map(UploadResult::file).toList(), is(files));
+    assertThat(results.stream().map(UploadResult::url).toList(),
+               is(List.of("https://example.com/small.jpg", "https://example.com/large.jpg", "https://example.com/medium.jpg")));
+  }
+
+  @Test
+  public void testImagesAreDownscaled(@TempDir Path tempDir) throws IOException {
+    final Path large = Files.write(tempDir.resolve("large.jpg"), ImageResizerTest.jpeg(1200, 800));
+    final Path small = Files.write(tempDir.resolve("small.jpg"), ImageResizerTest.jpeg(200, 100));
+    final Path other = Files.writeString(tempDir.resolve("other.jpg"), "no image");
+    final var connection = new FakeConnection();
+
+    final List<UploadResult> results = new UploadBatch("user", "password", callback).withImageResizer(new ImageResizer(300, 0.8f))
+      .uploadResultsAsync(List.of(large, small, other), () -> connection).join();
+
+    assertThat(results.stream().map(UploadResult::url).toList(),
+               contains("https://example.com/large.jpg", "https://example.com/small.jpg", "https://example.com/other.jpg"));
+    assertThat(connection.contentSizes.keySet(), contains(large));
+    assertThat((long) connection.contentSizes.get(large), is(lessThan(Files.size(large) / 4)));
+    assertThat(connection.uploadCount.get(), is(3));
+  }
+
+  static List<Path> files(int count) {
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      files.add(Path.of("file" + i + ".jpg"));
+    }
+    return files;
+  }
+
+  @Test
+  public void testCancellationStopsTheBatch() throws Exception {
+    final var connection = new FakeConnection();
+    final List<Path> files = files(6);
+    files.forEach(it -> connection.delays.put(it, 5000L));
+    final var cancellation = new Cancellation();
+    connection.uploadsStarted = new CountDownLatch(2);
+    final var future = new UploadBatch("user", "password", callback).withParallelUploads(2).withCancellation(cancellation)
+      .uploadResultsAsync(files, () -> connection);
+    assertTrue(connection.uploadsStarted.await(2, TimeUnit.SECONDS), "The first uploads did not start");
+
+    cancellation.cancel();
+    final List<UploadResult> results = future.get(2, TimeUnit.SECONDS);
+    assertThat(results.stream().map(UploadResult::error).toList(), everyItem(instanceOf(CancellationException.class)));
+    assertThat(callback.failed, hasSize(6));
+    assertThat(connection.uploadCount.get(), is(2));
+    assertThat(connection.getLoginStatus(), is(UploadConnection.LoginStatus.DISCONNECTED));
+  }
+
+  @Test
+  public void testFileDeadlineIncludesWaiting() {
+    final var connection = new FakeConnection();
+    final List<Path> files = files(2);
+    connection.delays.put(files.get(0), 500L);
+    connection.delays.put(files.get(1), 200L);
+    // the second upload alone takes less than the deadline, but it has to wait for the first one
+    final List<UploadResult> results = new UploadBatch("user", "password", callback).withParallelUploads(1)
+      .withFileDeadline(Duration.ofMillis(600)).uploadResultsAsync(files, () -> connection).join();
+
+    assertThat(results.get(0).isSuccess(), is(true));
+    assertThat(results.get(1).error(), instanceOf(TimeoutException.class));
+  }
+
+  @Test
+  public void testFileDeadlineStartsWithTheBatch() {
+    final var connection = new FakeConnection();
+    final List<Path> files = files(3);
+    files.forEach(it -> connection.delays.put(it, 300L));
+    // every file is in its own chunk, the last one is scheduled long after the start of the batch
+    final List<UploadResult> results = new UploadBatch("user", "password", callback).withParallelUploads(1).withChunkSize(1)
+      .withFileDeadline(Duration.ofMillis(750)).uploadResultsAsync(files, () -> connection).join();
+
+    assertThat(results.get(0).isSuccess(), is(true));
+    assertThat(results.get(1).isSuccess(), is(true));
+    assertThat(results.get(2).error(), instanceOf(TimeoutException.class));
+  }
+
+  @Test
+  public void testBatchTimeout() {
+    final var connection = new FakeConnection();
+    final List<Path> files = files(3);
+    files.forEach(it -> connection.delays.put(it, 400L));
+    final String result = new UploadBatch("user", "password", callback).withParallelUploads(1)
+      .withBatchTimeout(Duration.ofMillis(600)).upload(files, () -> connection);
+
+    assertThat(callback.uploaded, is(List.of(files.getFirst())));
+    assertThat(callback.failed, containsInAnyOrder(files.get(1), files.get(2)));
+    assertThat(result, containsString("did not finish within"));
+  }
+
+  static final class RecordingCallback implements UploadBatchCallback {
+    final List<Path> uploaded = new CopyOnWriteArrayList<>();
+    final List<Path> failed = new CopyOnWriteArrayList<>();
+    final Map<Path, String> urls = new ConcurrentHashMap<>();
+    final AtomicInteger virtualThreadCallbacks = new AtomicInteger();
+
+    @Override
+    public void uploaded(Path uploaded, String url) {
+      if (Thread.currentThread().isVirtual()) {
+        virtualThreadCallbacks.incrementAndGet();
+      }
+      this.uploaded.add(uploaded);
+      urls.put(uploaded, url);
+    }
+
+    @Override
+    public void failed(Path uploaded, Throwable cause) {
+      this.failed.add(uploaded);
+    }
+  }
+
+  static final class FakeConnection implements UploadConnection {
+    final Map<Path, Long> delays = new ConcurrentHashMap<>();
+    final Map<Path, Integer> contentSizes = new ConcurrentHashMap<>();
+    final List<Path> failing = new CopyOnWriteArrayList<>();
+    final AtomicInteger uploadCount = new AtomicInteger();
+    final List<Path> uploadOrder = new CopyOnWriteArrayList<>();
+    final AtomicInteger loginCount = new AtomicInteger();
+    final AtomicInteger maxConcurrentUploads = new AtomicInteger();
+    private final AtomicInteger concurrentUploads = new AtomicInteger();
+    volatile CountDownLatch uploadsStarted = new CountDownLatch(0);
+    /** The logged in sessions, it may be shared by several connections */
+    volatile AtomicInteger loggedInSessions = new AtomicInteger();
+    volatile AtomicInteger maxLoggedInSessions = new AtomicInteger();
+    volatile LoginStatus loginResult = LoginStatus.LOGGED_IN;
+    private volatile LoginStatus loginStatus = LoginStatus.DISCONNECTED;
+
+    @Override
+    public CompletableFuture<LoginStatus> loginAsync(String user, String password) {
+      loginCount.incrementAndGet();
+      loginStatus = loginResult;
+      if (loginStatus == LoginStatus.LOGGED_IN) {
+        maxLoggedInSessions.accumulateAndGet(loggedInSessions.incrementAndGet(), Math::max);
+      }
+      return CompletableFuture.completedFuture(loginStatus);
+    }
+
+    @Override
+    public CompletableFuture<String> uploadAsync(Path file) {
+      uploadCount.incrementAndGet();
+      uploadsStarted.countDown();
+      uploadOrder.add(file);
+      final int concurrent = concurrentUploads.incrementAndGet();
+      maxConcurrentUploads.accumulateAndGet(concurrent, Math::max);
+      final var delayed = CompletableFuture.delayedExecutor(delays.getOrDefault(file, 0L), TimeUnit.MILLISECONDS);
+      return CompletableFuture.supplyAsync(() -> {
+        concurrentUploads.decrementAndGet();
+        if (failing.contains(file)) {
+          throw new CompletionException(new UploadException("Could not find URL in the response"));
+        }
+        return "https://example.com/" + file.getFileName();
+      }, delayed);
+    }
+
+    @Override
+    public CompletableFuture<String> uploadAsync(Path file, ByteBuffer content, LongConsumer bytesSent) {
+      contentSizes.put(file, content.remaining());
+      return uploadAsync(file);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> logoutAsync() {
+      endSession();
+      loginStatus = LoginStatus.LOGGED_OUT;
+      return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public void disconnect() {
+      endSession();
+      loginStatus = LoginStatus.DISCONNECTED;
+    }
+
+    private void endSession() {
+      if (loginStatus == LoginStatus.LOGGED_IN) {
+        loggedInSessions.decrementAndGet();
+      }
+    }
+
+    @Override
+    public LoginStatus getLoginStatus() {
+      return loginStatus;
+    }
+  }
+}
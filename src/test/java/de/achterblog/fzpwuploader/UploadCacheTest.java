@@ -0,0 +1,89 @@
+package de.achterblog.fzpwuploader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class UploadCacheTest {
+  private static final String URL = "https://Freizeitparkweb.de/dcf/User_files/0123456789abcdef.jpg";
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  public void testSameContent() throws IOException {
+    final Path cacheFile = tempDir.resolve("cache.txt");
+    final Path image = Files.writeString(tempDir.resolve("image.jpg"), "content");
+    final Path copy = Files.writeString(tempDir.resolve("copy.jpg"), "content");
+    final Path other = Files.writeString(tempDir.resolve("other.jpg"), "other content");
+
+    try (var cache = UploadCache.open(cacheFile)) {
+      assertThat(cache.lookup(image), is(Optional.empty()));
+      cache.record(image, URL);
+      assertThat(cache.lookup(image), is(Optional.of(URL)));
+      assertThat(cache.lookup(copy), is(Optional.of(URL)));
+      assertThat(cache.lookup(other), is(Optional.empty()));
+    }
+
+    try (var cache = UploadCache.open(cacheFile)) {
+      assertThat(cache.lookup(copy), is(Optional.of(URL)));
+      assertThat(cache.lookup(other), is(Optional.empty()));
+    }
+  }
+
+  @Test
+  public void testUnchangedFileIsNotHashedAgain() throws IOException {
+    final Path image = Files.writeString(tempDir.resolve("image.jpg"), "content");
+    final FileTime lastModified = Files.getLastModifiedTime(image);
+
+    try (var cache = UploadCache.open(tempDir.resolve("cache.txt"))) {
+      cache.record(image, URL);
+
+      // same size and modification time: the hash from the record is used
+      Files.writeString(image, "CONTENT");
+      Files.setLastModifiedTime(image, lastModified);
+      assertThat(cache.lookup(image), is(Optional.of(URL)));
+
+      Files.setLastModifiedTime(image, FileTime.fromMillis(lastModified.toMillis() + 1000));
+      assertThat(cache.lookup(image), is(Optional.empty()));
+    }
+  }
+
+  @Test
+  public void testSettingsArePartOfTheKey() throws IOException {
+    final Path cacheFile = tempDir.resolve("cache.txt");
+    final Path image = Files.writeString(tempDir.resolve("image.jpg"), "content");
+    final String resized = new ImageResizer().settings();
+    final String resizedUrl = "https://Freizeitparkweb.de/dcf/User_files/fedcba9876543210.jpg";
+
+    try (var cache = UploadCache.open(cacheFile)) {
+      cache.record(image, resized, resizedUrl);
+      assertThat(cache.lookup(image), is(Optional.empty()));
+      assertThat(cache.lookup(image, new ImageResizer(800, 0.85f).settings()), is(Optional.empty()));
+      cache.record(image, URL);
+    }
+
+    try (var cache = UploadCache.open(cacheFile)) {
+      assertThat(cache.lookup(image), is(Optional.of(URL)));
+      assertThat(cache.lookup(image, resized), is(Optional.of(resizedUrl)));
+    }
+  }
+
+  @Test
+  public void testOnlyCachesUploadUrls() throws IOException {
+    final Path image = Files.writeString(tempDir.resolve("image.jpg"), "content");
+
+    try (var cache = UploadCache.open(tempDir.resolve("cache.txt"))) {
+      cache.record(image, "https://example.com/image.jpg");
+      assertThat(cache.lookup(image), is(Optional.empty()));
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package de.achterblog.fzpwuploader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class UploadJournalTest {
+  @TempDir
+  Path tempDir;
+
+  @Test
+  public void testRecordAndResume() throws IOException {
+    final Path journalFile = tempDir.resolve("journal/journal.txt");
+    final Path image = createFile("image 1.jpg", "content");
+    final Path other = createFile("other.jpg", "other");
+
+    try (var journal = UploadJournal.open(journalFile)) {
+      assertThat(journal.lookup(image), is(Optional.empty()));
+      journal.record(image, "https://example.com/1.jpg");
+      assertThat(journal.lookup(image), is(Optional.of("https://example.com/1.jpg")));
+    }
+
+    try (var journal = UploadJournal.open(journalFile)) {
+      assertThat(journal.lookup(image), is(Optional.of("https://example.com/1.jpg")));
+      assertThat(journal.lookup(other), is(Optional.empty()));
+    }
+  }
+
+  @Test
+  public void testChangedFileIsNotSkipped() throws IOException {
+    final Path journalFile = tempDir.resolve("journal.txt");
+    final Path image = createFile("image.jpg", "content");
+
+    try (var journal = UploadJournal.open(journalFile, Duration.ZERO)) {
+      journal.record(image, "https://example.com/1.jpg");
+      Files.setLastModifiedTime(image, FileTime.fromMillis(Files.getLastModifiedTime(image).toMillis() + 1000));
+      assertThat(journal.lookup(image), is(Optional.empty()));
+    }
+  }
+
+  @Test
+  public void testSettingsArePartOfTheKey() throws IOException {
+    final Path journalFile = tempDir.resolve("journal.txt");
+    final Path image = createFile("image.jpg", "content");
+    final String resized = new ImageResizer().settings();
+
+    try (var journal = UploadJournal.open(journalFile)) {
+      journal.record(image, resized, "https://example.com/resized.jpg");
+      assertThat(journal.lookup(image), is(Optional.empty()));
+      assertThat(journal.lookup(image, new ImageResizer(800, 0.85f).settings()), is(Optional.empty()));
+      journal.record(image, "https://example.com/1.jpg");
+    }
+
+    try (var journal = UploadJournal.open(journalFile)) {
+      assertThat(journal.lookup(image), is(Optional.of("https://example.com/1.jpg")));
+      assertThat(journal.lookup(image, resized), is(Optional.of("https://example.com/resized.jpg")));
+    }
+  }
+
+  @Test
+  public void testIncompleteLastLine() throws IOException {
+    final Path journalFile = tempDir.resolve("journal.txt");
+    final Path image = createFile("image.jpg", "content");
+    final Path other = createFile("other.jpg", "other");
+
+    try (var journal = UploadJournal.open(journalFile)) {
+      journal.record(image, "https://example.com/1.jpg");
+    }
+    Files.writeString(journalFile, "7\t12", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+    try (var journal = UploadJournal.open(journalFile)) {
+      assertThat(journal.lookup(image), is(Optional.of("https://example.com/1.jpg")));
+      journal.record(other, "https://example.com/2.jpg");
+    }
+    try (var journal = UploadJournal.open(journalFile)) {
+      assertThat(journal.lookup(other), is(Optional.of("https://example.com/2.jpg")));
+    }
+  }
+
+  private Path createFile(String name, String content) throws IOException {
+    return Files.writeString(tempDir.resolve(name), content);
+  }
+}
@@ -0,0 +1,110 @@
+package de.achterblog.fzpwuploader.cli;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import de.achterblog.fzpwuploader.UploadBatch;
+import de.achterblog.fzpwuploader.UploadBatch.SchedulingPolicy;
+import de.achterblog.fzpwuploader.cli.CommandLineUploader.Credentials;
+import de.achterblog.fzpwuploader.cli.CommandLineUploader.Options;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CommandLineUploaderTest {
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+  private final CommandLineUploader uploader = new CommandLineUploader(new PrintStream(out, true, StandardCharsets.UTF_8),
+                                                                       new PrintStream(err, true, StandardCharsets.UTF_8));
+
+  @TempDir
+  public Path tempDir;
+
+  @Test
+  public void testParseOptions() {
+    final Options options = Options.parse(new String[]{"--parallel=8", "a.jpg", "--no-session", "--order=shortest-first", "--", "--b.jpg"});
+    assertThat(options.arguments(), is(List.of("a.jpg", "--b.jpg")));
+    assertThat(options.parallelUploads(), is(8));
+    assertThat(options.keepSession(), is(false));
+    assertThat(options.logout(), is(false));
+    assertThat(options.schedulingPolicy(), is(SchedulingPolicy.SHORTEST_FIRST));
+    assertThat(Options.parse(new String[]{"--timeout=60", "--file-timeout=10"}).fileTimeoutSeconds(), is(10));
+    final Options resize = Options.parse(new String[]{"--max-edge=1200", "--quality=70", "--strip-metadata"});
+    assertThat(resize.stripMetadata(), is(true));
+    assertThat(resize.maxEdge(), is(1200));
+    assertThat(resize.qualityPercent(), is(70));
+
+    final Options defaults = Options.parse(new String[]{"a.jpg"});
+    assertThat(defaults.parallelUploads(), is(UploadBatch.DEFAULT_PARALLEL_UPLOADS));
+    assertThat(defaults.keepSession(), is(true));
+    assertThat(defaults.timeoutSeconds(), is(0));
+    assertThat(defaults.maxEdge(), is(0));
+    assertThat(defaults.stripMetadata(), is(false));
+
+    assertThrows(IllegalArgumentException.class, () -> Options.parse(new String[]{"--parallel=0"}));
+    assertThrows(IllegalArgumentException.class, () -> Options.parse(new String[]{"--unknown"}));
+    assertThrows(IllegalArgumentException.class, () -> Options.parse(new String[]{"--order=random"}));
+    assertThrows(IllegalArgumentException.class, () -> Options.parse(new String[]{"--quality=101"}));
+  }
+
+  @Test
+  public void testCredentials() throws Exception {
+    final var fromEnv = Credentials.read(Map.of("FZPW_USER", "user", "FZPW_PASSWORD", "secret"), reader(""));
+    assertThat(fromEnv, is(new Credentials("user", "secret")));
+
+    final var fromStdin = Credentials.read(Map.of("FZPW_USER", "user"), reader("secret\n"));
+    assertThat(fromStdin, is(new Credentials("user", "secret")));
+
+    assertThat(Credentials.read(Map.of(), reader("user\nsecret\n")), is(new Credentials("user", "secret")));
+    assertThrows(IllegalArgumentException.class, () -> Credentials.read(Map.of(), reader("user\n")));
+  }
+
+  @Test
+  public void testExpandGlobs() throws Exception {
+    Files.createDirectories(tempDir.resolve("sub"));
+    for (String name : List.of("b.jpg", "a.jpg", "c.png", "sub/d.jpg")) {
+      Files.write(tempDir.resolve(name), new byte[0]);
+    }
+    final String dir = tempDir.toString().replace('\\', '/');
+
+    assertThat(uploader.expand(List.of(dir + "/*.jpg")), is(List.of(tempDir.resolve("a.jpg"), tempDir.resolve("b.jpg"))));
+    assertThat(uploader.expand(List.of(dir + "/**.jpg")).size(), is(3));
+    assertThat(uploader.expand(List.of("plain.jpg")), is(List.of(Path.of("plain.jpg"))));
+
+    assertThat(uploader.expand(List.of(dir + "/*.gif")), empty());
+    assertThat(err.toString(StandardCharsets.UTF_8), containsString("No file matches"));
+  }
+
+  @Test
+  public void testUsage() {
+    assertThat(uploader.run(new String[]{"--help"}, Map.of(), reader("")), is(0));
+    assertThat(out.toString(StandardCharsets.UTF_8), containsString("Usage:"));
+
+    assertThat(uploader.run(new String[]{"--wrong"}, Map.of(), reader("")), is(2));
+    assertThat(err.toString(StandardCharsets.UTF_8), containsString("Unknown option --wrong"));
+  }
+
+  @Test
+  public void testCallbackOutput() {
+    uploader.uploaded(Path.of("a.jpg"), "https://example.com/a.jpg");
+    uploader.failed(Path.of("b.jpg"), new IOException("broken"));
+    assertThat(out.toString(StandardCharsets.UTF_8), is("a.jpg\thttps://example.com/a.jpg" + System.lineSeparator()));
+    assertThat(err.toString(StandardCharsets.UTF_8), containsString("b.jpg"));
+  }
+
+  private static BufferedReader reader(String content) {
+    return new BufferedReader(new StringReader(content));
+  }
+}
@@ -0,0 +1,72 @@
+package de.achterblog.util;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AdaptiveLimiterTest {
+  private static final Duration LATENCY = Duration.ofMillis(100);
+
+  private final AtomicLong now = new AtomicLong(0);
+
+  @Test
+  public void testIncreasesWhileLatencyIsFlat() {
+    final var limiter = new AdaptiveLimiter(2, 4, now::get);
+    limiter.onSuccess(LATENCY);
+    assertThat(limiter.getLimit(), is(2));
+    limiter.onSuccess(LATENCY);
+    assertThat(limiter.getLimit(), is(3));
+
+    successes(limiter, 3, LATENCY);
+    assertThat(limiter.getLimit(), is(4));
+    successes(limiter, 10, LATENCY);
+    assertThat(limiter.getLimit(), is(4));
+  }
+
+  @Test
+  public void testGrowingLatencyStopsIncrease() {
+    final var limiter = new AdaptiveLimiter(2, 10, now::get);
+    limiter.onSuccess(LATENCY);
+    limiter.onSuccess(LATENCY.multipliedBy(5));
+    limiter.onSuccess(LATENCY);
+    assertThat(limiter.getLimit(), is(2));
+  }
+
+  @Test
+  public void testOverloadHalvesOncePerDecrease() {
+    final var limiter = new AdaptiveLimiter(8, 10, now::get);
+    now.set(LATENCY.toNanos() * 10);
+    limiter.onOverload(LATENCY);
+    assertThat(limiter.getLimit(), is(4));
+
+    // started before the decrease, so it is ignored
+    now.addAndGet(LATENCY.toNanos() / 2);
+    limiter.onOverload(LATENCY);
+    assertThat(limiter.getLimit(), is(4));
+
+    now.addAndGet(LATENCY.toNanos() * 2);
+    limiter.onOverload(LATENCY);
+    assertThat(limiter.getLimit(), is(2));
+    now.addAndGet(LATENCY.toNanos() * 2);
+    limiter.onOverload(LATENCY);
+    now.addAndGet(LATENCY.toNanos() * 2);
+    limiter.onOverload(LATENCY);
+    assertThat(limiter.getLimit(), is(1));
+  }
+
+  @Test
+  public void testInvalidLimits() {
+    assertThrows(IllegalArgumentException.class, () -> new AdaptiveLimiter(4, 2));
+  }
+
+  private static void successes(AdaptiveLimiter limiter, int count, Duration latency) {
+    for (int i = 0; i < count; i++) {
+      limiter.onSuccess(latency);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package de.achterblog.util;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AsyncLimiterTest {
+  @Test
+  public void testAcquireRelease() {
+    final var limiter = new AsyncLimiter(2);
+    final CompletableFuture<Void> first = limiter.acquire();
+    final CompletableFuture<Void> second = limiter.acquire();
+    final CompletableFuture<Void> third = limiter.acquire();
+    final CompletableFuture<Void> fourth = limiter.acquire();
+
+    assertThat(first.isDone(), is(true));
+    assertThat(second.isDone(), is(true));
+    assertThat(third.isDone(), is(false));
+    assertThat(fourth.isDone(), is(false));
+
+    limiter.release();
+    assertThat(third.isDone(), is(true));
+    assertThat(fourth.isDone(), is(false));
+
+    limiter.release();
+    assertThat(fourth.isDone(), is(true));
+
+    limiter.release();
+    limiter.release();
+    assertThat(limiter.acquire().isDone(), is(true));
+  }
+
+  @Test
+  public void testSetLimit() {
+    final var limiter = new AsyncLimiter(2);
+    limiter.acquire();
+    limiter.acquire();
+    final CompletableFuture<Void> third = limiter.acquire();
+    final CompletableFuture<Void> fourth = limiter.acquire();
+
+    limiter.setLimit(3);
+    assertThat(third.isDone(), is(true));
+    assertThat(fourth.isDone(), is(false));
+    assertThat(limiter.getInFlight(), is(3));
+
+    // with the lower limit two permits must be given back before the next one is granted
+    limiter.setLimit(1);
+    limiter.release();
+    limiter.release();
+    assertThat(fourth.isDone(), is(false));
+    limiter.release();
+    assertThat(fourth.isDone(), is(true));
+    assertThat(limiter.getInFlight(), is(1));
+    assertThrows(IllegalArgumentException.class, () -> limiter.setLimit(0));
+  }
+
+  @Test
+  public void testInvalidLimit() {
+    assertThrows(IllegalArgumentException.class, () -> new AsyncLimiter(0));
+  }
+}
@@ -0,0 +1,152 @@
+package de.achterblog.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.Flow;
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class JpegSegmentFilterTest {
+  @TempDir
+  public Path tempDir;
+
+  @Test
+  public void testMetadataIsRemoved() throws IOException {
+    final byte[] jpeg = jpeg();
+    final byte[] thumbnail = new byte[30000];
+    Arrays.fill(thumbnail, (byte) 0x42);
+    final byte[] exif = concat(exif(ByteOrder.LITTLE_ENDIAN, 6), thumbnail);
+    final byte[] comment = "a comment".getBytes(StandardCharsets.US_ASCII);
+    final Path file = write(insertAfterApp0(jpeg, concat(segment(0xE1, exif), segment(0xFE, comment))));
+
+    final HttpRequest.BodyPublisher publisher = JpegSegmentFilter.METADATA.publisher(file);
+    final byte[] filtered = read(publisher);
+
+    // only the orientation of the EXIF segment is kept, the image data is unchanged
+    assertThat(filtered, is(insertAfterApp0(jpeg, JpegSegmentFilter.orientationSegment(6))));
+    assertThat(publisher.contentLength(), is((long) filtered.length));
+    final BufferedImage image = ImageIO.read(new ByteArrayInputStream(filtered));
+    assertThat(image.getWidth(), is(64));
+    // the publisher can be sent again
+    assertThat(read(publisher), is(filtered));
+  }
+
+  @Test
+  public void testOnlySelectedSegmentsAreRemoved() throws IOException {
+    final byte[] jpeg = jpeg();
+    final byte[] exif = exif(ByteOrder.BIG_ENDIAN, 1);
+    final byte[] comment = "a comment".getBytes(StandardCharsets.US_ASCII);
+    final Path file = write(insertAfterApp0(jpeg, concat(segment(0xE1, exif), segment(0xFE, comment))));
+
+    final byte[] filtered = read(new JpegSegmentFilter(Set.of(0xFE)).publisher(file));
+
+    assertThat(filtered, is(insertAfterApp0(jpeg, segment(0xE1, exif))));
+  }
+
+  @Test
+  public void testOtherFilesAreUnchanged() throws IOException {
+    final byte[] text = "no image".getBytes(StandardCharsets.US_ASCII);
+    assertThat(read(JpegSegmentFilter.METADATA.publisher(write(text))), is(text));
+
+    // the segment is longer than the file
+    final byte[] truncated = Arrays.copyOf(insertAfterApp0(jpeg(), segment(0xE1, new byte[100])), 30);
+    assertThat(read(JpegSegmentFilter.METADATA.publisher(write(truncated))), is(truncated));
+  }
+
+  @Test
+  public void testOnlyMetadataCanBeRemoved() {
+    assertThrows(IllegalArgumentException.class, () -> new JpegSegmentFilter(Set.of(0xDB)));
+  }
+
+  @Test
+  public void testExifOrientation() {
+    assertThat(JpegSegmentFilter.exifOrientation(exif(ByteOrder.BIG_ENDIAN, 8)), is(8));
+    assertThat(JpegSegmentFilter.exifOrientation(exif(ByteOrder.LITTLE_ENDIAN, 3)), is(3));
+    assertThat(JpegSegmentFilter.exifOrientation(exif(ByteOrder.LITTLE_ENDIAN, 42)), is(1));
+    assertThat(JpegSegmentFilter.exifOrientation("Exif\0\0".getBytes(StandardCharsets.US_ASCII)), is(1));
+    final byte[] segment = JpegSegmentFilter.orientationSegment(5);
+    assertThat(JpegSegmentFilter.exifOrientation(Arrays.copyOfRange(segment, 4, segment.length)), is(5));
+  }
+
+  private Path write(byte[] content) throws IOException {
+    return Files.write(Files.createTempFile(tempDir, "image", ".jpg"), content);
+  }
+
+  private static byte[] jpeg() throws IOException {
+    final var out = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB), "jpeg", out);
+    return out.toByteArray();
+  }
+
+  /** The content of an APP1 segment with only the orientation */
+  private static byte[] exif(ByteOrder order, int orientation) {
+    final ByteBuffer buffer = ByteBuffer.allocate(6 + 8 + 2 + 12 + 4).order(order);
+    buffer.put("Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+    buffer.put((order == ByteOrder.LITTLE_ENDIAN ? "II" : "MM").getBytes(StandardCharsets.US_ASCII));
+    buffer.putShort((short) 42).putInt(8);
+    buffer.putShort((short) 1);
+    buffer.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+    buffer.putInt(0);
+    return buffer.array();
+  }
+
+  private static byte[] segment(int marker, byte[] content) {
+    return concat(new byte[]{(byte) 0xFF, (byte) marker, (byte) ((content.length + 2) >> 8), (byte) (content.length + 2)}, content);
+  }
+
+  private static byte[] insertAfterApp0(byte[] jpeg, byte[] segments) {
+    final int app0End = 4 + (((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF));
+    return concat(Arrays.copyOf(jpeg, app0End), segments, Arrays.copyOfRange(jpeg, app0End, jpeg.length));
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    final var out = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      out.writeBytes(array);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] read(HttpRequest.BodyPublisher publisher) {
+    final var out = new ByteArrayOutputStream();
+    publisher.subscribe(new Flow.Subscriber<>() {
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(ByteBuffer item) {
+        final byte[] bytes = new byte[item.remaining()];
+        item.get(bytes);
+        out.writeBytes(bytes);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        throw new AssertionError(throwable);
+      }
+
+      @Override
+      public void onComplete() {
+      }
+    });
+    return out.toByteArray();
+  }
+}
@@ -1,13 +1,23 @@
 package de.achterblog.util;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.management.ThreadMXBean;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -21,98 +31,406 @@ public class MultiPartBodyPublisherTest {
   public void test(@TempDir final Path tempDir) throws IOException {
     final var path = tempDir.resolve("path");
     Files.writeString(path, "content");
-    try (final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###")) {
-      publisher.addPart("name", "test");
-      publisher.addPart("name", path, null, "image/jpeg");
-
-      final var build = publisher.build();
-
-      final var subscriber = new ByteBuffersToStringSubscriber();
-      build.subscribe(subscriber);
-
-      assertThat(subscriber.content, is("""
-                                          --###boundary###\r
-                                          Content-Disposition: form-data; name="name"\r
-                                          Content-Type: text/plain; charset=UTF-8\r
-                                          \r
-                                          test\r
-                                          --###boundary###\r
-                                          Content-Disposition: form-data; name="name"; filename="path"\r
-                                          Content-Type: image/jpeg\r
-                                          \r
-                                          content\r
-                                          --###boundary###--"""));
-    }
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###");
+    publisher.addPart("name", "test");
+    publisher.addPart("name", path, null, "image/jpeg");
+
+    final var build = publisher.build();
+
+    final var subscriber = new ByteBuffersToStringSubscriber();
+    build.subscribe(subscriber);
+
+    assertThat(subscriber.content, is("""
+                                        --###boundary###\r
+                                        Content-Disposition: form-data; name="name"\r
+                                        Content-Type: text/plain; charset=UTF-8\r
+                                        \r
+                                        test\r
+                                        --###boundary###\r
+                                        Content-Disposition: form-data; name="name"; filename="path"\r
+                                        Content-Type: image/jpeg\r
+                                        \r
+                                        content\r
+                                        --###boundary###--"""));
+    // the body has a known length, so it is not sent in chunks
+    assertThat(build.contentLength(), is((long) subscriber.content.getBytes(StandardCharsets.UTF_8).length));
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    // the clock of the bucket stands still, so only the first 50 bytes are available at once
+    final var bucket = new TokenBucket(1000, 50, () -> 0L);
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###");
+    publisher.addPart("name", "x".repeat(100)).limitRate(bucket);
+    final var build = publisher.build();
+
+    final var subscriber = new ByteBuffersToStringSubscriber();
+    build.subscribe(subscriber);
+    subscriber.done.get(5, TimeUnit.SECONDS);
+
+    assertThat(subscriber.content, containsString("x".repeat(100)));
+    // every byte of the body took a token, the ones after the first 50 are owed with 1ms per byte
+    final double owedNanos = TimeUnit.MILLISECONDS.toNanos(build.contentLength() - 50);
+    assertThat((double) bucket.reserve(0), is(closeTo(owedNanos, 1)));
+  }
+
+  @Test
+  public void testRateLimitDoesNotBlock() {
+    // the body owes about 100 seconds at 1 byte/s
+    final var bucket = new TokenBucket(1, 1, () -> 0L);
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###");
+    publisher.addPart("name", "test").limitRate(bucket);
+
+    final var subscriber = new ByteBuffersToStringSubscriber();
+    publisher.build().subscribe(subscriber);
+
+    // the subscribing thread got back at once, the buffer is passed on later
+    assertThat(subscriber.done.isDone(), is(false));
+    assertThat(subscriber.content, is(nullValue()));
+    subscriber.subscription.cancel();
+  }
+
+  @Test
+  public void testProgress() throws IOException {
+    final List<Long> progress = new CopyOnWriteArrayList<>();
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###");
+    publisher.addPart("name", "test").onProgress(progress::add);
+
+    final var subscriber = new ByteBuffersToStringSubscriber();
+    publisher.build().subscribe(subscriber);
+
+    assertThat(progress, is(not(empty())));
+    assertThat(progress.getLast(), is((long) subscriber.content.getBytes(StandardCharsets.UTF_8).length));
   }
 
   @Test
   public void testSingleElement() throws IOException {
-    try (final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###")) {
-      publisher.addPart("name", "test");
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###");
+    publisher.addPart("name", "test");
 
-      final var build = publisher.build();
+    final var build = publisher.build();
 
-      final var subscriber = new ByteBuffersToStringSubscriber();
-      build.subscribe(subscriber);
+    final var subscriber = new ByteBuffersToStringSubscriber();
+    build.subscribe(subscriber);
 
-      assertThat(subscriber.content, is("""
-                                          --###boundary###\r
-                                          Content-Disposition: form-data; name="name"\r
-                                          Content-Type: text/plain; charset=UTF-8\r
-                                          \r
-                                          test\r
-                                          --###boundary###--"""));
-    }
+    assertThat(subscriber.content, is("""
+                                        --###boundary###\r
+                                        Content-Disposition: form-data; name="name"\r
+                                        Content-Type: text/plain; charset=UTF-8\r
+                                        \r
+                                        test\r
+                                        --###boundary###--"""));
+  }
+
+  @Test
+  public void testTextIsEncodedWithCharset(@TempDir final Path tempDir) throws IOException {
+    final var path = tempDir.resolve("path");
+    Files.writeString(path, "content");
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.ISO_8859_1, () -> "###boundary###");
+    publisher.addPart("größe", "äöü");
+    publisher.addPart("datei", path, "bär.jpg", "image/jpeg");
+    publisher.addPart("name", "ß");
+
+    final var build = publisher.build();
+
+    final var subscriber = new ByteBuffersToStringSubscriber(StandardCharsets.ISO_8859_1);
+    build.subscribe(subscriber);
+
+    assertThat(subscriber.content, is("""
+                                        --###boundary###\r
+                                        Content-Disposition: form-data; name="größe"\r
+                                        Content-Type: text/plain; charset=ISO-8859-1\r
+                                        \r
+                                        äöü\r
+                                        --###boundary###\r
+                                        Content-Disposition: form-data; name="datei"; filename="bär.jpg"\r
+                                        Content-Type: image/jpeg\r
+                                        \r
+                                        content\r
+                                        --###boundary###\r
+                                        Content-Disposition: form-data; name="name"\r
+                                        Content-Type: text/plain; charset=ISO-8859-1\r
+                                        \r
+                                        ß\r
+                                        --###boundary###--"""));
+    assertThat(build.contentLength(), is((long) subscriber.content.length()));
+  }
+
+  @Test
+  public void testInMemoryContent() {
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###");
+    final var buffer = ByteBuffer.wrap("xxbuffer".getBytes(StandardCharsets.UTF_8)).position(2);
+    final var streams = new AtomicInteger();
+    publisher.addPart("array", "array".getBytes(StandardCharsets.UTF_8), "a.jpg", "image/jpeg")
+             .addPart("buffer", buffer, "b.jpg", "image/jpeg")
+             .addPart("stream", () -> {
+               streams.incrementAndGet();
+               return new ByteArrayInputStream("stream".getBytes(StandardCharsets.UTF_8));
+             }, 6, "c.jpg", "image/jpeg");
+
+    final var build = publisher.build();
+    final var subscriber = new ByteBuffersToStringSubscriber();
+    build.subscribe(subscriber);
+
+    assertThat(subscriber.content, is("""
+                                        --###boundary###\r
+                                        Content-Disposition: form-data; name="array"; filename="a.jpg"\r
+                                        Content-Type: image/jpeg\r
+                                        \r
+                                        array\r
+                                        --###boundary###\r
+                                        Content-Disposition: form-data; name="buffer"; filename="b.jpg"\r
+                                        Content-Type: image/jpeg\r
+                                        \r
+                                        buffer\r
+                                        --###boundary###\r
+                                        Content-Disposition: form-data; name="stream"; filename="c.jpg"\r
+                                        Content-Type: image/jpeg\r
+                                        \r
+                                        stream\r
+                                        --###boundary###--"""));
+    assertThat(build.contentLength(), is((long) subscriber.content.length()));
+    assertThat(buffer.position(), is(2));
+
+    // every subscription opens a new stream and reads the buffers from the start again
+    final var again = new ByteBuffersToStringSubscriber();
+    build.subscribe(again);
+    assertThat(again.content, is(subscriber.content));
+    assertThat(streams.get(), is(2));
   }
 
   @Test
   public void testMissingParts() throws IOException {
-    try (final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8)) {
-      final var e = assertThrows(IllegalStateException.class, publisher::build);
-      assertThat(e.getMessage(), is("No parts defined yet"));
-    }
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8);
+    final var e = assertThrows(IllegalStateException.class, publisher::build);
+    assertThat(e.getMessage(), is("No parts defined yet"));
   }
 
   @Test
   public void testCannotReadFromFile(@TempDir final Path tempDir) throws IOException {
     final var path = tempDir.resolve("path");
     Files.createDirectories(path);
-    try (final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8)) {
-      publisher.addPart("name", path, null, "image/jpeg");
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8);
+    publisher.addPart("name", path, null, "image/jpeg");
 
-      final var build = publisher.build();
+    final var build = publisher.build();
 
-      final var subscriber = new ByteBuffersToStringSubscriber();
-      final var e = assertThrows(RuntimeException.class, () -> build.subscribe(subscriber));
-      if (!(e instanceof UncheckedIOException)) {
-        // java >=26
-        assertThat(e.getCause(), instanceOf(IOException.class));
-      }
+    final var subscriber = new ByteBuffersToStringSubscriber();
+    build.subscribe(subscriber);
+    assertThat(subscriber.error, instanceOf(IOException.class));
+    assertThat(subscriber.content, is(nullValue()));
+  }
+
+  @Test
+  public void testLargeFileIsSentInSlices(@TempDir final Path tempDir) throws IOException {
+    final var path = tempDir.resolve("large.jpg");
+    final byte[] content = new byte[3 * 1024 * 1024 + 12345];
+    new Random(42).nextBytes(content);
+    Files.write(path, content);
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.ISO_8859_1, () -> "###boundary###");
+    publisher.addPart("file", path, null, "image/jpeg");
+    final var build = publisher.build();
+
+    final var subscriber = new ByteBuffersToStringSubscriber(StandardCharsets.ISO_8859_1);
+    build.subscribe(subscriber);
+    assertThat(build.contentLength(), is((long) subscriber.content.length()));
+    assertThat(subscriber.content, containsString(new String(content, StandardCharsets.ISO_8859_1)));
+
+    // a second subscription reads the file again
+    final var again = new ByteBuffersToStringSubscriber(StandardCharsets.ISO_8859_1);
+    build.subscribe(again);
+    assertThat(again.content, is(subscriber.content));
+  }
+
+  @Test
+  public void testFileIsCopiedOnlyOnceIntoTheHeap(@TempDir final Path tempDir) throws IOException {
+    final var path = tempDir.resolve("large.jpg");
+    final int size = 4 * 1024 * 1024;
+    Files.write(path, new byte[size]);
+    final var body = ByteBufferPublisher.ofFile(path);
+    final var threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // the first subscription loads the classes
+    body.subscribe(new CountingSubscriber());
+
+    final var subscriber = new CountingSubscriber();
+    final long before = threads.getCurrentThreadAllocatedBytes();
+    body.subscribe(subscriber);
+    final long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+    assertThat(subscriber.error, is(nullValue()));
+    assertThat(subscriber.bytes, is((long) size));
+    assertThat(subscriber.buffers, is(size / (64 * 1024)));
+    // the slices are the only copy of the file on the heap: no buffer for the whole file and no further copies
+    assertThat(allocated, is(both(greaterThanOrEqualTo((long) size)).and(lessThan(size + 64L * 1024))));
+  }
+
+  @Test
+  public void testBuffersOfTheBody() {
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###");
+    final byte[] content = new byte[1024 * 1024];
+    publisher.addPart("az", "upload_file")
+             .addPart("command", "save")
+             .addPart("file_upload", ByteBuffer.wrap(content), "image.jpg", "image/jpeg")
+             .addPart("file_type", "jpg");
+    final var body = publisher.build();
+    final var threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // the first subscription loads the classes
+    body.subscribe(new CountingSubscriber());
+
+    final var subscriber = new CountingSubscriber();
+    final long before = threads.getCurrentThreadAllocatedBytes();
+    body.subscribe(subscriber);
+    final long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+    assertThat(subscriber.error, is(nullValue()));
+    assertThat(subscriber.bytes, is(body.contentLength()));
+    // one buffer for the text before the content, 16 slices of the content and one for the text after it
+    assertThat(subscriber.buffers, is(1 + 16 + 1));
+    // the headers are not encoded again and the content is not copied
+    assertThat(allocated, lessThan(16L * 1024));
+  }
+
+  @Test
+  public void testFileThatChangedItsSizeFails(@TempDir final Path tempDir) throws IOException {
+    final var path = tempDir.resolve("path");
+    Files.writeString(path, "content");
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###");
+    publisher.addPart("name", path, null, "image/jpeg");
+    final var build = publisher.build();
+
+    Files.writeString(path, "more content");
+    final var subscriber = new ByteBuffersToStringSubscriber();
+    build.subscribe(subscriber);
+    assertThat(subscriber.error, instanceOf(IOException.class));
+    assertThat(subscriber.content, is(nullValue()));
+  }
+
+  @Test
+  public void testBuiltBodyCanBeReplayed(@TempDir final Path tempDir) throws IOException {
+    final var path = tempDir.resolve("path");
+    Files.writeString(path, "content");
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###");
+    publisher.addPart("name", "test");
+    publisher.addPart("name", path, null, "image/jpeg");
+
+    final var build = publisher.build();
+    assertThat(publisher.build(), is(sameInstance(build)));
+
+    final var first = new ByteBuffersToStringSubscriber();
+    build.subscribe(first);
+    final var second = new ByteBuffersToStringSubscriber();
+    publisher.build().subscribe(second);
+
+    assertThat(second.content, is(first.content));
+    assertThat(second.content.split("--###boundary###--", -1).length, is(2));
+    assertThat(build.contentLength(), is((long) second.content.getBytes(StandardCharsets.UTF_8).length));
+
+    final var e = assertThrows(IllegalStateException.class, () -> publisher.addPart("other", "value"));
+    assertThat(e.getMessage(), is("The body was already built"));
+    assertThrows(IllegalStateException.class, () -> publisher.limitRate(new TokenBucket(1000, 50)));
+  }
+
+  @Test
+  public void testSubscriptionsHaveTheirOwnCursor(@TempDir final Path tempDir) throws IOException {
+    final var path = tempDir.resolve("path");
+    Files.writeString(path, "content");
+    final var publisher = new MultiPartBodyPublisher(StandardCharsets.UTF_8, () -> "###boundary###");
+    publisher.addPart("name", "test");
+    publisher.addPart("name", path, null, "image/jpeg");
+    final var build = publisher.build();
+
+    final var expected = new ByteBuffersToStringSubscriber();
+    build.subscribe(expected);
+
+    // both subscriptions request one buffer after another, interleaved
+    final var first = new ByteBuffersToStringSubscriber(StandardCharsets.UTF_8, 0);
+    final var second = new ByteBuffersToStringSubscriber(StandardCharsets.UTF_8, 0);
+    build.subscribe(first);
+    build.subscribe(second);
+    for (int i = 0; i < 100 && (first.content == null || second.content == null); i++) {
+      first.subscription.request(1);
+      second.subscription.request(1);
+    }
+
+    assertThat(first.content, is(expected.content));
+    assertThat(second.content, is(expected.content));
+  }
+
+  /** Counts the buffers and their bytes without keeping them */
+  private static class CountingSubscriber implements Flow.Subscriber<ByteBuffer> {
+    private int buffers;
+    private long bytes;
+    private Throwable error;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(ByteBuffer b) {
+      buffers++;
+      bytes += b.remaining();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      error = t;
+    }
+
+    @Override
+    public void onComplete() {
     }
   }
 
   private static class ByteBuffersToStringSubscriber implements Flow.Subscriber<ByteBuffer> {
     private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final Charset charset;
+    private final long initialDemand;
+    private Flow.Subscription subscription;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
     private String content;
+    private Throwable error;
+
+    ByteBuffersToStringSubscriber() {
+      this(StandardCharsets.UTF_8);
+    }
+
+    ByteBuffersToStringSubscriber(Charset charset) {
+      this(charset, Long.MAX_VALUE);
+    }
+
+    ByteBuffersToStringSubscriber(Charset charset, long initialDemand) {
+      this.charset = charset;
+      this.initialDemand = initialDemand;
+    }
 
     @Override
     public void onSubscribe(Flow.Subscription subscription) {
-      subscription.request(Long.MAX_VALUE);
+      this.subscription = subscription;
+      if (initialDemand > 0) {
+        subscription.request(initialDemand);
+      }
     }
 
     @Override
     public void onNext(ByteBuffer b) {
-      buffer.write(b.array(), 0, b.remaining());
+      // the buffers may be read-only slices, so they are not always backed by an array
+      final byte[] bytes = new byte[b.remaining()];
+      b.get(bytes);
+      buffer.writeBytes(bytes);
     }
 
     @Override
     public void onError(Throwable t) {
-      throw t instanceof RuntimeException rte ? rte : new IllegalStateException("Subscriber.onError", t);
+      error = t;
+      done.complete(null);
     }
 
     @Override
     public void onComplete() {
-      content = buffer.toString(StandardCharsets.UTF_8);
+      content = buffer.toString(charset);
+      done.complete(null);
     }
   }
 }
\ No newline at end of file
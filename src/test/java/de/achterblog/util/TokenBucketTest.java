@@ -0,0 +1,42 @@
+package de.achterblog.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TokenBucketTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final AtomicLong now = new AtomicLong(0);
+
+  @Test
+  public void testReserve() {
+    final var bucket = new TokenBucket(10, 5, now::get);
+    // the bucket starts full
+    assertThat(bucket.reserve(5), is(0L));
+    assertThat(bucket.reserve(1), is(SECOND / 10));
+    // the later reservation waits for the earlier one
+    assertThat(bucket.reserve(1), is(2 * SECOND / 10));
+
+    now.addAndGet(SECOND);
+    assertThat(bucket.reserve(5), is(0L));
+  }
+
+  @Test
+  public void testCapacityLimitsTheBurst() {
+    final var bucket = new TokenBucket(100, 10, now::get);
+    now.addAndGet(10 * SECOND);
+    assertThat(bucket.reserve(20), is(SECOND / 10));
+  }
+
+  @Test
+  public void testInvalidParameters() {
+    assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 1));
+    assertThrows(IllegalArgumentException.class, () -> new TokenBucket(1, 0));
+  }
+}